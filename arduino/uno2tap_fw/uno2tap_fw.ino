@@ -46,9 +46,29 @@ void setup() {
 #define XFR_SIZE 48
 #define NUM_XFRS 8
 #define BUF_SIZE (XFR_SIZE*NUM_XFRS)
-int buf[BUF_SIZE];
+byte buf[BUF_SIZE];
 int buf_pos, xfr_pos, buf_entries;
 
+// protocol 1: one 'N' per received transfer, the PC answers in lockstep
+// protocol 2: one 'N' per free transfer slot (a credit), the PC keeps
+//  several transfers in flight. Selected by the PC with 'V'
+#define PROTOCOL_VERSION 2
+// bit 0: runs of identical pulses can be sent as 0x01 count value
+#define CAP_RLE 0x01
+// bit 1: the serial rate can be changed with 'B' index
+#define CAP_BAUD 0x02
+// bit 2: motor changes are reported with 'M' and 'm'
+#define CAP_MOTOR 0x04
+#define CAPABILITIES (CAP_RLE | CAP_BAUD | CAP_MOTOR)
+#define RLE_ESCAPE 0x01
+int protocol = 1;
+int compressed;
+// run being decoded: 1 expecting the count, 2 expecting the value
+int rle_state;
+byte rle_count;
+byte run_value;
+byte run_remaining;
+
 int playing;
 int pre_buffering;
 int recording;
@@ -59,7 +79,40 @@ unsigned long last_pulse;
 int reading_extended;
 unsigned long extended_data[3];
 
+// rates selectable with 'B', the first one is used after reset
+#define NUM_RATES 4
+const unsigned long rates[NUM_RATES] = {115200, 250000, 500000, 1000000};
+int rate_index;
+// an idle PC sends a keep-alive every 600 ms. Without any command for this long
+//  it is gone, and a new one will start at the first rate
+#define RATE_IDLE_MS 2000
+unsigned long last_command;
+
+void set_rate(int index) {
+  Serial.flush();
+  Serial.end();
+  rate_index = index;
+  Serial.begin(rates[index]);
+}
+
+// next argument of a command, -1 if it doesn't arrive in time
+int read_arg() {
+  unsigned long start = millis();
+  while (Serial.available() == 0) {
+    if (millis() - start > 100) return -1;
+  }
+  return Serial.read();
+}
+
+// back to the state after reset: first rate, no compression, protocol 1
+void reset_link() {
+  compressed = 0;
+  protocol = 1;
+  if (rate_index != 0) set_rate(0);
+}
+
 void execute(int cmd) {
+  if (cmd != 0 && strchr("ZPVBTCRrSsW", cmd) != NULL) last_command = millis();
   switch (cmd) {
     // nop
     case 'Z':
@@ -68,17 +121,73 @@ void execute(int cmd) {
     case 'P':
       Serial.write('P');
       break;
+    // version query, a new PC connecting: forget what the last one set up and
+    //  switch to the newest protocol
+    case 'V':
+      reset_link();
+      protocol = PROTOCOL_VERSION;
+      Serial.write('V');
+      Serial.write(PROTOCOL_VERSION);
+      Serial.write(XFR_SIZE);
+      Serial.write(NUM_XFRS);
+      Serial.write(CAPABILITIES);
+      break;
+    // change serial rate, replies 'B' index at the old rate. The new rate is kept
+    //  only if a ping arrives within a second, otherwise the old one comes back
+    case 'B': {
+      int index = read_arg();
+      if (index < 0 || index >= NUM_RATES || playing || recording) index = rate_index;
+      Serial.write('B');
+      Serial.write(index);
+      if (index == rate_index) break;
+      int previous = rate_index;
+      set_rate(index);
+      unsigned long start = millis();
+      while (millis() - start < 1000) {
+        if (Serial.available() > 0 && Serial.read() == 'P') {
+          Serial.write('P');
+          return;
+        }
+      }
+      set_rate(previous);
+      break;
+    }
+    // echo the next n bytes back, used to test the link
+    case 'T': {
+      int n = read_arg();
+      for (int i = 0; i < n; i++) {
+        int b = read_arg();
+        if (b < 0) break;
+        Serial.write(b);
+      }
+      break;
+    }
+    // compressed transfers on
+    case 'C':
+      compressed = 1;
+      break;
     // play
     case 'R':
       playing = 1;
+      rle_state = 0;
+      run_remaining = 0;
       pre_buffering = 1;
       buf_pos = 0;
       buf_entries = 0;
       xfr_pos = -1;
-      Serial.write('N');
+      if (protocol >= 2) {
+        for (int i = 0; i < NUM_XFRS; i++) Serial.write('N');
+      } else {
+        Serial.write('N');
+      }
+      report_motor();
       break;
-    // stop
+    // stop. A recording ends with an extended value of 0 cycles, which no pulse
+    //  can have, so the PC knows where the pulse bytes end
     case 'r':
+      if (recording) {
+        for (int i = 0; i < 4; i++) Serial.write(0);
+      }
       playing = 0;
       recording = 0;
       break;
@@ -101,9 +210,17 @@ void execute(int cmd) {
 //int motor_on=1;
 int xmotor_on;
 
+// tells the PC the motor state, never while recording where every byte is a pulse
+void report_motor() {
+  if (!recording) Serial.write(xmotor_on ? 'M' : 'm');
+}
+
 void read_motor() {
-  xmotor_on = digitalRead(PIN_MOTOR);
-  digitalWrite(PIN_DBG, xmotor_on);
+  int motor = digitalRead(PIN_MOTOR);
+  digitalWrite(PIN_DBG, motor);
+  if (motor == xmotor_on) return;
+  xmotor_on = motor;
+  report_motor();
 }
 
 void send_tap_interval(unsigned long interval) {
@@ -154,7 +271,7 @@ void buffer_next() {
 
   if (xfr_pos == XFR_SIZE) {
     buf_entries++;
-    Serial.write('N');
+    if (protocol < 2) Serial.write('N');
     xfr_pos = -1;
     return;
   }
@@ -169,6 +286,40 @@ void buffer_next() {
   }
 }
 
+// with several transfers in flight the serial buffer would overflow during
+//  a long pulse, so keep copying it while there is time to spare
+#define WAIT_SLACK 100
+
+void wait_until(unsigned long when) {
+  while (micros() < when) {
+    if (protocol >= 2 && buf_entries < NUM_XFRS && micros() + WAIT_SLACK < when) buffer_next();
+  }
+}
+
+// true if the transfer at buf index base starts with a stop
+int is_stop(int base) {
+  return buf[base % BUF_SIZE] == 'r';
+}
+
+// with the motor off nothing is played, but the buffer is kept full so the
+//  motor can start again without an underrun. A stop must still be obeyed,
+//  whether it is already buffered or still waiting in the serial buffer
+void motor_stopped() {
+  int pos_base = buf_pos - (buf_pos % XFR_SIZE);
+  for (int i = (buf_pos % XFR_SIZE) ? 1 : 0; i < buf_entries; i++) {
+    if (is_stop(pos_base + i * XFR_SIZE)) {
+      playing = 0;
+      return;
+    }
+  }
+  if (xfr_pos == -1 && Serial.available() >= XFR_SIZE && Serial.peek() == 'r') {
+    for (int i = 0; i < XFR_SIZE; i++) Serial.read();
+    playing = 0;
+    return;
+  }
+  if (buf_entries < NUM_XFRS) buffer_next();
+}
+
 // when playing, loop() must never take longer to run than the pulse length it's sending
 //  (actually you can get away with it on a long pulse, loader permitting)
 void loop() {
@@ -184,6 +335,7 @@ void loop() {
   }
 
   if (!playing) {
+    if (rate_index != 0 && millis() - last_command > RATE_IDLE_MS) reset_link();
     delay(100);
     if (Serial.available() > 0) {
       int cmd = Serial.read();
@@ -192,23 +344,53 @@ void loop() {
     return;
   }
 
-  if(!xmotor_on) return;
+  if (!xmotor_on) {
+    motor_stopped();
+    return;
+  }
 
   // prepare buffer
   if (buf_pos >= BUF_SIZE) buf_pos = 0;
   if (buf_entries < NUM_XFRS) buffer_next();
   else pre_buffering = 0;
   if (pre_buffering) return;
-  // first byte is control
-  if (buf_pos % XFR_SIZE == 0) {
-    execute(buf[buf_pos++]);
-    if (!playing) return;
-  }
+  unsigned long tap_data;
+  if (run_remaining) {
+    // repeat the current run without touching the buffer
+    run_remaining--;
+    tap_data = run_value;
+  } else {
+    // first byte is control
+    if (buf_pos % XFR_SIZE == 0) {
+      execute(buf[buf_pos++]);
+      if (!playing) return;
+    }
+
+    tap_data = (unsigned long)buf[buf_pos++];
+    //Serial.write(tap_data);
+    if (buf_pos % XFR_SIZE == 0) {
+      buf_entries--;
+      // the slot is free again, hand the credit back
+      if (protocol >= 2) Serial.write('N');
+    }
+    if (buf_entries < 1) Serial.write('E');
 
-  unsigned long tap_data = (unsigned long)buf[buf_pos++];
-  //Serial.write(tap_data);
-  if (buf_pos % XFR_SIZE == 0) buf_entries--;
-  if (buf_entries < 1) Serial.write('E');
+    // 0x01 count value: the value repeated count times
+    if (rle_state == 1) {
+      rle_count = tap_data;
+      rle_state = 2;
+      return;
+    }
+    if (rle_state == 2) {
+      rle_state = 0;
+      if (rle_count == 0) return;
+      run_value = tap_data;
+      run_remaining = rle_count - 1;
+    } else if (compressed && !reading_extended && tap_data == RLE_ESCAPE) {
+      rle_state = 1;
+      return;
+    }
+  }
 
   // calculate the pulse interval
   if (reading_extended) {
@@ -229,10 +411,10 @@ void loop() {
 
   // send a 1 at half interval
   //if(micros()>(last_pulse+(pulse_length/2))) Serial.write('E');
-  while (micros() < (last_pulse + (pulse_length / 2)));
+  wait_until(last_pulse + (pulse_length / 2));
   digitalWrite(PIN_READ, 1);
   // send a 0 at full interval
-  while (micros() < (last_pulse + pulse_length));
+  wait_until(last_pulse + pulse_length);
   digitalWrite(PIN_READ, 0);
 
   last_pulse = micros();
@@ -0,0 +1,294 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * JMH benchmarks of the streaming hot paths, in operations per second.
+ * <p>
+ * Run with {@code mvn -Pbench test-compile exec:exec}, optionally passing JMH
+ * arguments such as a name filter in {@code -Djmh.args=...}, and compare against
+ * {@code bench/baseline.txt}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Benchmarks {
+    private static final int SMALL_TAPE = 64 * 1024;
+    private static final int LARGE_TAPE = 16 * 1024 * 1024;
+    private static final int STREAM_TAPE = 256 * 1024;
+    private static final int CHUNK = 47;
+    // a stalled simulator fails the run instead of hanging it
+    private static final long STREAM_TIMEOUT_MS = 30000;
+
+    /**
+     * A synthetic tape on either backend, for random seeks.
+     */
+    @State(Scope.Benchmark)
+    public static class SeekState {
+        @Param({"small", "large"})
+        public String size;
+
+        @Param({"heap", "mapped"})
+        public String backend;
+
+        Tape tape;
+        Random random;
+
+        @Setup
+        public void setup() throws IOException {
+            random = new Random(42);
+            File file = syntheticTape(size.equals("small") ? SMALL_TAPE : LARGE_TAPE, random);
+            tape = new Tape(file, backend.equals("mapped"));
+        }
+
+        @TearDown
+        public void tearDown() {
+            tape.close();
+        }
+    }
+
+    /**
+     * A large tape read in frame sized chunks.
+     */
+    @State(Scope.Thread)
+    public static class FrameState {
+        Tape tape;
+        final ByteBuffer frame = ByteBuffer.allocate(CHUNK + 1);
+
+        @Setup
+        public void setup() throws IOException {
+            tape = new Tape(syntheticTape(LARGE_TAPE, new Random(42)));
+        }
+
+        @TearDown
+        public void tearDown() {
+            tape.close();
+        }
+
+        void rewindIfDone() {
+            if (tape.getPos() + CHUNK > tape.getSize()) tape.rewind();
+        }
+    }
+
+    /**
+     * A pilot heavy tape, as Kernal and most turbo loaders make them, sent raw or
+     * run length encoded.
+     */
+    @State(Scope.Thread)
+    public static class EncodeState {
+        @Param({"raw", "rle"})
+        public String encoding;
+
+        Tape pilot;
+        FrameEncoder encoder;
+        final ByteBuffer frame = ByteBuffer.allocate(CHUNK + 1);
+        long frames;
+
+        @Setup
+        public void setup() throws IOException {
+            pilot = new Tape(pilotTape(STREAM_TAPE, new Random(42)));
+            encoder = new FrameEncoder(encoding.equals("rle"));
+        }
+
+        // pulses the link can carry at 115200 baud, 10 bits per byte
+        @TearDown
+        public void tearDown() {
+            double pulsesPerByte = (double) encoder.getPulses() / (frames * frame.capacity());
+            System.out.printf("%n%s: %.1f pulses/s at 115200 baud%n", encoding, pulsesPerByte * 11520);
+            pilot.close();
+        }
+    }
+
+    /**
+     * Log messages queued for a sink that drops them.
+     */
+    @State(Scope.Benchmark)
+    public static class LogState {
+        private final LogSink sink = batch -> {
+        };
+
+        @Setup
+        public void setup() {
+            Log.setLevel(Log.Level.INFO);
+            Log.addSink(sink);
+        }
+
+        @TearDown
+        public void tearDown() {
+            Log.flush();
+            Log.removeSink(sink);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StreamState {
+        File file;
+
+        @Setup
+        public void setup() throws IOException {
+            file = syntheticTape(STREAM_TAPE, new Random(42));
+        }
+    }
+
+    @Benchmark
+    public double pos2time(SeekState state) {
+        state.tape.setPos(TapHeader.SIZE + state.random.nextInt(state.tape.getSize() - TapHeader.SIZE));
+        return state.tape.getTime();
+    }
+
+    @Benchmark
+    public int time2pos(SeekState state) {
+        state.tape.setTime(state.random.nextDouble() * state.tape.getTotalTime());
+        return state.tape.getPos();
+    }
+
+    /**
+     * One chunk taken from the tape.
+     */
+    @Benchmark
+    public byte frameGetNByte(FrameState state) {
+        state.rewindIfDone();
+        return state.tape.getNByte(CHUNK)[0];
+    }
+
+    /**
+     * One chunk read into a frame.
+     */
+    @Benchmark
+    public byte frameEncode(FrameState state) {
+        state.rewindIfDone();
+        ByteBuffer frame = state.frame;
+        frame.clear();
+        frame.put((byte) 'Z');
+        state.tape.read(frame, CHUNK);
+        while (frame.hasRemaining()) frame.put((byte) 0x20);
+        return frame.get(1);
+    }
+
+    /**
+     * One frame of the pilot tape through the encoder.
+     */
+    @Benchmark
+    public byte encode(EncodeState state) {
+        if (state.encoder.isFinished(state.pilot)) {
+            state.pilot.rewind();
+            state.encoder.reset();
+        }
+        ByteBuffer frame = state.frame;
+        frame.clear();
+        frame.put((byte) 'Z');
+        state.encoder.encode(state.pilot, frame);
+        state.frames++;
+        return frame.get(1);
+    }
+
+    @Benchmark
+    public void logWrite(LogState state) {
+        Log.write("Sending command Z...");
+    }
+
+    @Benchmark
+    public void logDebugDisabled(LogState state) {
+        if (Log.isDebug()) Log.debug("Sending command " + 'Z' + "...");
+    }
+
+    /**
+     * A tape streamed through the whole host pipeline to an unthrottled
+     * VirtualArduino, connection and protocol negotiation included.
+     */
+    @Benchmark
+    @Warmup(iterations = 1, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public void streamLoopback(StreamState state, Blackhole blackhole) throws Exception {
+        SimulatedHardwareController controller = new SimulatedHardwareController(
+                new VirtualArduino(VirtualArduino.Speed.UNTHROTTLED, 1));
+        CassetteRecorder recorder = new CassetteRecorder(controller);
+        try {
+            controller.setRecorder(recorder);
+            recorder.setTape(state.file);
+            long deadline = System.currentTimeMillis() + STREAM_TIMEOUT_MS;
+            await(() -> controller.getProtocolVersion() >= 2, deadline, "protocol negotiation");
+            recorder.play();
+            await(() -> recorder.getState() == CassetteRecorder.State.PLAYING, deadline, "playback to start");
+            await(() -> recorder.getState() != CassetteRecorder.State.PLAYING, deadline, "playback to end");
+            blackhole.consume(controller.getMetrics().getBytesSent());
+        } finally {
+            recorder.dispose();
+        }
+    }
+
+    private static void await(BooleanSupplier done, long deadline, String what) throws Exception {
+        while (!done.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) throw new TimeoutException("Timed out waiting for " + what);
+            Thread.sleep(1);
+        }
+    }
+
+    // TAP v1 image of leader tones followed by data, one block after the other
+    static File pilotTape(int size, Random random) throws IOException {
+        File file = File.createTempFile("uno2tap-bench", ".tap");
+        file.deleteOnExit();
+        byte[] data = new byte[size];
+        byte[] header = TapHeader.create(size - TapHeader.SIZE);
+        System.arraycopy(header, 0, data, 0, header.length);
+        int i = TapHeader.SIZE;
+        while (i < size) {
+            for (int n = 0; n < 10000 && i < size; n++) data[i++] = 0x30;
+            for (int n = 0; n < 6000 && i < size; n++) data[i++] = (byte) (random.nextBoolean() ? 0x30 : 0x42);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    // TAP v1 image of short and medium pulses with an extended pause now and then
+    static File syntheticTape(int size, Random random) throws IOException {
+        File file = File.createTempFile("uno2tap-bench", ".tap");
+        file.deleteOnExit();
+        byte[] data = new byte[size];
+        byte[] header = TapHeader.create(size - TapHeader.SIZE);
+        System.arraycopy(header, 0, data, 0, header.length);
+        for (int i = TapHeader.SIZE; i < size; i++) {
+            if (i + 4 < size && random.nextInt(10000) == 0) {
+                data[i] = 0;
+                data[i + 1] = (byte) random.nextInt(256);
+                data[i + 2] = (byte) random.nextInt(256);
+                data[i + 3] = 1;
+                i += 3;
+            } else {
+                data[i] = (byte) (random.nextBoolean() ? 0x30 : 0x42);
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
@@ -17,11 +17,39 @@
 package it.nicofossa;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State machine of the recorder. The state only moves through compare-and-set,
+ * so a hardware event racing with a user action cannot undo it. Play, stop and
+ * record return a future completed when the device has acknowledged the change,
+ * or failed with a {@link TimeoutException} if it does not within {@link #STATE_TIMEOUT_MS}.
+ */
+public class CassetteRecorder implements HardwareController.OnHardwareEventListener {
+    private static final long DISPOSE_TIMEOUT_MS = 3000;
+    public static final long STATE_TIMEOUT_MS = Long.getLong("uno2tap.stateTimeout", 10000);
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "uno2tap-state-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
 
-public class CassetteRecorder implements HardwareController.OnHardwareEventListener, Tape.OnTapeEventListener {
     private HardwareController controller;
-    private Tape tape;
-    private State state;
+    private volatile Tape tape;
+    private final AtomicReference<State> state = new AtomicReference<>(State.EJECTED);
+    private final List<StateWaiter> waiters = new CopyOnWriteArrayList<>();
 
     private CasseteRecorderChangedListener casseteRecorderChangedListener;
 
@@ -29,120 +57,277 @@ public class CassetteRecorder implements HardwareController.OnHardwareEventListe
         this.controller = controller;
         controller.setOnHardwareEvent(this);
         controller.connect();
-        state = State.EJECTED;
     }
 
-    public void setTape(File tape) {
-        if (state != State.EJECTED) {
+    // inserting and ejecting swap the tape, so they also exclude each other
+    public synchronized void setTape(File tape) {
+        if (state.get() != State.EJECTED) {
             Log.write("Tried to put an other cassette in but old cassette not ejected!");
             return;
         }
 
         this.tape = new Tape(tape);
-        this.tape.setOnTapeEventListener(this);
-        state = State.STOPPED;
-        updateState();
+        if (!transition(State.EJECTED, State.STOPPED)) {
+            // a recording started meanwhile
+            this.tape.close();
+            this.tape = null;
+            Log.write("Tried to put an other cassette in but old cassette not ejected!");
+        }
     }
 
-    public void ejectTape() {
-        if (state == State.EJECTED) {
+    public synchronized void ejectTape() {
+        if (!transition(State.STOPPED, State.EJECTED)) {
             Log.write("A cassette must be inserted and must be stopped in order to eject it");
             return;
         }
         tape.close();
         tape = null;
-        state = State.EJECTED;
-        updateState();
     }
 
+    /**
+     * Stops the tape, waiting for the device to acknowledge, ejects it and disconnects.
+     */
     public void dispose() {
-        if (state == State.PLAYING) stop();
-        while (state == State.PLAYING) {
+        State current = state.get();
+        if (current == State.PLAYING || current == State.RECORDING) {
             try {
-                Thread.sleep(100);
+                stop().get(DISPOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.write("The device did not stop in time, disconnecting anyway");
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
                 e.printStackTrace();
             }
         }
-        if (state == State.STOPPED) ejectTape();
-        updateState();
+        if (state.get() == State.STOPPED) ejectTape();
         controller.disconnect();
     }
 
-    public void play() {
-        if (state == State.STOPPED) {
-            controller.play();
-        }else{
+    /**
+     * Starts playing, the future completes with PLAYING once the device does.
+     */
+    public CompletableFuture<State> play() {
+        if (state.get() != State.STOPPED) {
             Log.write("A cassette must be inserted and must be stopped in order to play it!");
-            return;
+            return CompletableFuture.completedFuture(state.get());
         }
-
+        CompletableFuture<State> done = awaitState(State.PLAYING);
+        controller.play();
+        return done;
     }
 
-    public void stop() {
-        if (state == State.PLAYING) {
-            controller.stop();
-        }else{
+    /**
+     * Stops playing or recording, the future completes with STOPPED or EJECTED
+     * (a recording leaves the recorder empty) once the device has stopped.
+     */
+    public CompletableFuture<State> stop() {
+        State current = state.get();
+        if (current != State.PLAYING && current != State.RECORDING) {
             Log.write("A cassette must be inserted and must be playing in order to be stopped!");
+            return CompletableFuture.completedFuture(current);
         }
+        CompletableFuture<State> done = awaitState(current == State.PLAYING ? State.STOPPED : State.EJECTED);
+        controller.stop();
+        return done;
+    }
 
+    /**
+     * Records what the C64 saves into a new TAP file, the recorder must be empty.
+     * The future completes with RECORDING once the device is capturing.
+     */
+    public CompletableFuture<State> record(File file) {
+        if (state.get() != State.EJECTED) {
+            Log.write("The cassette must be ejected in order to record a new one!");
+            return CompletableFuture.completedFuture(state.get());
+        }
+        CompletableFuture<State> done = awaitState(State.RECORDING);
+        controller.record(file);
+        return done;
+    }
+
+    /**
+     * Future completed as soon as the recorder is in the given state, already
+     * completed if it is in it now. It fails after {@link #STATE_TIMEOUT_MS};
+     * a waiter that times out or is cancelled is forgotten.
+     */
+    public CompletableFuture<State> awaitState(State expected) {
+        StateWaiter waiter = new StateWaiter(expected);
+        waiters.add(waiter);
+        ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> waiter.future.completeExceptionally(
+                new TimeoutException("The device did not reach " + expected)), STATE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        waiter.future.whenComplete((reached, error) -> {
+            waiters.remove(waiter);
+            timeout.cancel(false);
+        });
+        // the state may have changed before the waiter was visible
+        if (state.get() == expected) release(expected);
+        return waiter.future;
+    }
+
+    private boolean transition(State from, State to) {
+        if (!state.compareAndSet(from, to)) return false;
+        release(to);
+        updateState();
+        return true;
+    }
+
+    private void release(State reached) {
+        for (StateWaiter waiter : waiters) {
+            if (waiter.expected == reached && waiters.remove(waiter)) waiter.future.complete(reached);
+        }
     }
 
     private void updateState() {
         if (casseteRecorderChangedListener != null) {
-            casseteRecorderChangedListener.onCassetteRecorderStateChanged(state);
+            casseteRecorderChangedListener.onCassetteRecorderStateChanged(state.get());
         }
     }
 
     public void rewind() {
-        if (state == State.EJECTED){
+        Tape current = tape;
+        if (current == null) {
             Log.write("A cassette must be inserted in order to rewind it!");
             return;
         }
-        if (state == State.PLAYING) stop();
-        tape.rewind();
+        if (state.get() == State.PLAYING) {
+            // once stopped the writer gives the frames the device did not play back to the
+            // tape, which would undo a rewind done now
+            stop().whenComplete((reached, error) -> {
+                if (error == null) current.rewind();
+                else Log.write("Tape not rewound: " + error.getMessage());
+            });
+            return;
+        }
+        current.rewind();
+    }
+
+    /**
+     * Moves to the leader of the next file on the tape, returns false if there is none.
+     */
+    public boolean seekToNextFile() {
+        if (!canSeek()) return false;
+        return seekTo(tape.getBlocks().nextFile(tape.getPos()));
+    }
+
+    /**
+     * Moves to the leader of the file before the current position, returns false if there is none.
+     */
+    public boolean seekToPreviousFile() {
+        if (!canSeek()) return false;
+        return seekTo(tape.getBlocks().previousFile(tape.getPos()));
+    }
+
+    /**
+     * Moves to the leader of block n, counting from 0 in {@link CbmBlockIndex#getBlocks()}.
+     */
+    public boolean seekToBlock(int n) {
+        if (!canSeek()) return false;
+        List<CbmBlock> blocks = tape.getBlocks().getBlocks();
+        return seekTo(n >= 0 && n < blocks.size() ? blocks.get(n) : null);
+    }
+
+    private boolean canSeek() {
+        if (state.get() != State.STOPPED) {
+            Log.write("A cassette must be inserted and must be stopped in order to seek!");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean seekTo(CbmBlock block) {
+        if (block == null) {
+            Log.write("No such file or block on this tape");
+            return false;
+        }
+        tape.setPos(block.getLeaderOffset());
+        Log.write("Positioned at " + block);
+        return true;
     }
 
     public void setTime(double time) {
-        if (state == State.EJECTED) throw new IllegalStateException("No cassette inserted!");
-        tape.setTime(time);
+        Tape current = tape;
+        if (current == null) throw new IllegalStateException("No cassette inserted!");
+        current.setTime(time);
     }
 
     public double getPos() {
-        if (state == State.EJECTED) throw new IllegalStateException("No cassette inserted!");
-        return tape.getPos();
+        Tape current = tape;
+        if (current == null) throw new IllegalStateException("No cassette inserted!");
+        return current.getPos();
     }
 
     public Tape getTape() {
         return tape;
     }
 
+    /**
+     * Offset the device has played up to. While playing the tape position is ahead
+     * of it by the frames buffered on the device, which do not move while the motor
+     * is off.
+     */
+    public int getPlayedPos() {
+        Tape current = tape;
+        if (current == null) throw new IllegalStateException("No cassette inserted!");
+        return getPlayedPos(current);
+    }
+
+    /**
+     * Played offset of a tape taken from {@link #getTape()} earlier, for callers
+     * that must not fail if it is ejected meanwhile.
+     */
+    public int getPlayedPos(Tape current) {
+        int pos = current.getPos();
+        if (current != tape || state.get() != State.PLAYING) return pos;
+        return Math.min(pos, controller.getPlayback().getPlayedPos(pos));
+    }
+
+    /**
+     * Tape time at the played offset, what the counter of a real recorder would show.
+     */
+    public double getPlayedTime(Tape current) {
+        return current.getIndex().estimateTime(getPlayedPos(current));
+    }
+
+    public boolean isMotorOn() {
+        return controller.getPlayback().isMotorOn();
+    }
+
     @Override
     public void onPlayStateChanged(boolean playing) {
         if (playing) {
-            state = State.PLAYING;
+            transition(State.STOPPED, State.PLAYING);
         } else {
-            state = State.STOPPED;
+            transition(State.PLAYING, State.STOPPED);
         }
-        updateState();
     }
 
     @Override
-    public void onPosUpdated(int pos, int lenght) {
-        if (casseteRecorderChangedListener != null) {
-            casseteRecorderChangedListener.onPosUpdated(pos, lenght);
+    public void onRecordStateChanged(boolean recording) {
+        if (recording) {
+            transition(State.EJECTED, State.RECORDING);
+        } else {
+            transition(State.RECORDING, State.EJECTED);
         }
     }
 
     public enum State {STOPPED, PLAYING, RECORDING, EJECTED}
 
     public State getState() {
-        return state;
+        return state.get();
+    }
+
+    private static class StateWaiter {
+        final State expected;
+        final CompletableFuture<State> future = new CompletableFuture<>();
+
+        StateWaiter(State expected) {
+            this.expected = expected;
+        }
     }
 
     public interface CasseteRecorderChangedListener {
         void onCassetteRecorderStateChanged(State state);
-        void onPosUpdated(int pos, int lenght);
     }
 
     public void setCasseteRecorderChangedListener(CasseteRecorderChangedListener casseteRecorderChangedListener) {
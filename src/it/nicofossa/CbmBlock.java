@@ -0,0 +1,135 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+/**
+ * A block written by the Kernal tape routines, as found by {@link CbmDecoder}.
+ * <p>
+ * The Kernal writes every block twice; the first copy is preceded by the countdown
+ * 0x89..0x81, the repeat by 0x09..0x01. The payload excludes countdown and checksum.
+ * A header block is 192 bytes: file type, start and end address, 16 characters of
+ * name in PETSCII and padding.
+ * <p>
+ * Offsets are file offsets into the TAP image: where the run of short pulses
+ * before the block starts, where its first byte marker starts and the first
+ * pulse after it.
+ */
+public class CbmBlock {
+    public static final int HEADER_SIZE = 192;
+
+    public static final int TYPE_RELOCATABLE = 1;
+    public static final int TYPE_SEQ_DATA = 2;
+    public static final int TYPE_PROGRAM = 3;
+    public static final int TYPE_SEQ_HEADER = 4;
+    public static final int TYPE_END_OF_TAPE = 5;
+
+    private final byte[] payload;
+    private final boolean repeat;
+    private final boolean checksumOk;
+    private final int leaderOffset;
+    private final int startOffset;
+    private final int endOffset;
+
+    CbmBlock(byte[] payload, boolean repeat, boolean checksumOk, int leaderOffset, int startOffset, int endOffset) {
+        this.payload = payload;
+        this.repeat = repeat;
+        this.checksumOk = checksumOk;
+        this.leaderOffset = leaderOffset;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
+    public int getLeaderOffset() {
+        return leaderOffset;
+    }
+
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    public int getEndOffset() {
+        return endOffset;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * True for the second copy of a block.
+     */
+    public boolean isRepeat() {
+        return repeat;
+    }
+
+    /**
+     * True if the checksum matched and no byte had a parity error.
+     */
+    public boolean isChecksumOk() {
+        return checksumOk;
+    }
+
+    public boolean isHeader() {
+        if (payload.length != HEADER_SIZE) return false;
+        int type = getType();
+        return type == TYPE_RELOCATABLE || type == TYPE_PROGRAM || type == TYPE_SEQ_HEADER || type == TYPE_END_OF_TAPE;
+    }
+
+    /**
+     * First payload byte, the file type for header blocks.
+     */
+    public int getType() {
+        return payload.length > 0 ? payload[0] & 0xff : -1;
+    }
+
+    public int getStartAddress() {
+        return isHeader() ? (payload[1] & 0xff) | (payload[2] & 0xff) << 8 : -1;
+    }
+
+    public int getEndAddress() {
+        return isHeader() ? (payload[3] & 0xff) | (payload[4] & 0xff) << 8 : -1;
+    }
+
+    /**
+     * File name of a header block, PETSCII letters turned to ASCII and padding removed.
+     */
+    public String getName() {
+        if (!isHeader()) return null;
+        StringBuilder name = new StringBuilder(16);
+        for (int i = 5; i < 21; i++) name.append(petscii(payload[i] & 0xff));
+        int end = name.length();
+        while (end > 0 && name.charAt(end - 1) == ' ') end--;
+        return name.substring(0, end);
+    }
+
+    private static char petscii(int c) {
+        if (c >= 0x20 && c < 0x5b) return (char) c;
+        if (c >= 0xc1 && c <= 0xda) return (char) (c - 0x80);
+        if (c == 0xa0 || c == 0) return ' ';
+        return '?';
+    }
+
+    @Override
+    public String toString() {
+        String where = String.format(" at %d-%d", startOffset, endOffset);
+        if (isHeader()) {
+            return String.format("header type %d \"%s\" $%04X-$%04X%s%s%s", getType(), getName(),
+                    getStartAddress(), getEndAddress(), where, repeat ? " (repeat)" : "", checksumOk ? "" : ", bad checksum");
+        }
+        return "data " + payload.length + " bytes" + where + (repeat ? " (repeat)" : "") + (checksumOk ? "" : ", bad checksum");
+    }
+}
@@ -0,0 +1,88 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Kernal loader blocks of a tape, found in one pass over its pulses.
+ * <p>
+ * A file starts with the first copy of its header block; seeking to a file or
+ * block puts the tape at the start of the leader in front of it, so the C64 has
+ * the whole leader to sync on.
+ */
+public class CbmBlockIndex {
+    private final List<CbmBlock> blocks;
+    private final List<CbmBlock> files;
+
+    public CbmBlockIndex(PulseArray pulses, TapHeader header) {
+        List<CbmBlock> found = new ArrayList<>();
+        CbmDecoder decoder = new CbmDecoder(found::add);
+        for (int i = 0; i < pulses.size(); i++) decoder.pulse(pulses.get(i), pulses.getOffset(i));
+        decoder.finish(header.getDataEnd());
+
+        List<CbmBlock> headers = new ArrayList<>();
+        for (CbmBlock block : found) {
+            if (block.isHeader() && !block.isRepeat()) headers.add(block);
+        }
+        blocks = Collections.unmodifiableList(found);
+        files = Collections.unmodifiableList(headers);
+    }
+
+    /**
+     * All blocks in tape order, repeats included.
+     */
+    public List<CbmBlock> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * The header block of every file.
+     */
+    public List<CbmBlock> getFiles() {
+        return files;
+    }
+
+    /**
+     * First file whose leader starts after pos, null if there is none.
+     */
+    public CbmBlock nextFile(int pos) {
+        for (CbmBlock file : files) {
+            if (file.getLeaderOffset() > pos) return file;
+        }
+        return null;
+    }
+
+    /**
+     * Last file whose leader starts before pos, null if there is none.
+     */
+    public CbmBlock previousFile(int pos) {
+        CbmBlock previous = null;
+        for (CbmBlock file : files) {
+            if (file.getLeaderOffset() >= pos) break;
+            previous = file;
+        }
+        return previous;
+    }
+
+    @Override
+    public String toString() {
+        return blocks.size() + " blocks, " + files.size() + " files";
+    }
+}
@@ -0,0 +1,191 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.util.Arrays;
+
+/**
+ * Single pass decoder of the standard Kernal ROM loader encoding.
+ * <p>
+ * Pulses are fed one at a time and sorted into short, medium and long. A byte is
+ * a long-medium marker followed by nine bit pairs, short-medium for 0 and
+ * medium-short for 1, LSB first, the ninth being odd parity. A long-short pair,
+ * or anything that is not a marker, ends the block. Turbo loaders and pauses just
+ * end up as noise between blocks.
+ * <p>
+ * Along with each pulse the decoder gets its file offset, so blocks come out with
+ * the offsets of their leader, first marker and end, ready for seeking.
+ */
+public class CbmDecoder {
+    // pulse classes in cycles (TAP value * 8)
+    private static final int SHORT_MAX = 0x3b * 8;
+    private static final int MEDIUM_MAX = 0x4c * 8;
+    private static final int LONG_MAX = 0x70 * 8;
+    private static final int SHORT = 0;
+    private static final int MEDIUM = 1;
+    private static final int LONG = 2;
+    private static final int OTHER = 3;
+
+    private static final int COUNTDOWN = 9;
+
+    public interface OnBlockListener {
+        void onBlock(CbmBlock block);
+    }
+
+    private final OnBlockListener listener;
+
+    // bytes of the block being read, countdown included
+    private byte[] bytes = new byte[256];
+    private int length;
+    private int parity_errors;
+    private int leader_offset;
+    private int start_offset;
+
+    // start of the current run of short pulses, -1 if the last pulse was not short
+    private int shorts_start = -1;
+
+    // 0 between bytes, 1 after the long pulse of a marker, 2 reading bits
+    private int state;
+    private int first_half = -1;
+    private int bits;
+    private int bit_count;
+
+    public CbmDecoder(OnBlockListener listener) {
+        this.listener = listener;
+    }
+
+    private static int classify(long cycles) {
+        if (cycles <= SHORT_MAX) return SHORT;
+        if (cycles <= MEDIUM_MAX) return MEDIUM;
+        if (cycles <= LONG_MAX) return LONG;
+        return OTHER;
+    }
+
+    /**
+     * Feeds the next pulse, a full wave of the given length starting at the given file offset.
+     */
+    public void pulse(long cycles, int offset) {
+        int type = classify(cycles);
+        int run_start = shorts_start;
+        shorts_start = type != SHORT ? -1 : run_start < 0 ? offset : run_start;
+        switch (state) {
+            case 0:
+                if (type == LONG) {
+                    if (length == 0) {
+                        leader_offset = run_start < 0 ? offset : run_start;
+                        start_offset = offset;
+                    }
+                    state = 1;
+                } else {
+                    endBlock(offset);
+                }
+                break;
+            case 1:
+                if (type == MEDIUM) {
+                    state = 2;
+                    first_half = -1;
+                    bits = 0;
+                    bit_count = 0;
+                } else {
+                    // long-short is the end of data marker, anything else is not ours
+                    endBlock(type == SHORT ? offset + 1 : offset);
+                    state = 0;
+                    if (type == LONG) restart(offset);
+                }
+                break;
+            default:
+                if (first_half < 0) {
+                    first_half = type;
+                    break;
+                }
+                int bit;
+                if (first_half == SHORT && type == MEDIUM) bit = 0;
+                else if (first_half == MEDIUM && type == SHORT) bit = 1;
+                else {
+                    endBlock(offset);
+                    state = 0;
+                    if (type == LONG) restart(offset);
+                    break;
+                }
+                first_half = -1;
+                bits |= bit << bit_count++;
+                if (bit_count == 9) {
+                    if ((Integer.bitCount(bits) & 1) == 0) parity_errors++;
+                    add((byte) bits);
+                    state = 0;
+                }
+                break;
+        }
+    }
+
+    // a long pulse out of place may be the marker of a new block
+    private void restart(int offset) {
+        leader_offset = offset;
+        start_offset = offset;
+        state = 1;
+    }
+
+    /**
+     * Call at the end of the tape with the end of data offset, emits a block still being read.
+     */
+    public void finish(int offset) {
+        endBlock(offset);
+        state = 0;
+        shorts_start = -1;
+    }
+
+    private void add(byte b) {
+        if (length == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        bytes[length++] = b;
+    }
+
+    private void endBlock(int end_offset) {
+        try {
+            if (length == 0) return;
+            // the countdown may have lost its first bytes, find where it ends
+            int start = -1;
+            for (int i = 0; i < Math.min(length, COUNTDOWN); i++) {
+                if ((bytes[i] & 0x7f) == 1 && i > 0 && countdown(i)) {
+                    start = i + 1;
+                    break;
+                }
+            }
+            // at least one payload byte and the checksum
+            if (start < 0 || length - start < 2) return;
+
+            int checksum = 0;
+            for (int i = start; i < length - 1; i++) checksum ^= bytes[i];
+            boolean ok = parity_errors == 0 && (byte) checksum == bytes[length - 1];
+            boolean repeat = (bytes[start - 1] & 0x80) == 0;
+            listener.onBlock(new CbmBlock(Arrays.copyOfRange(bytes, start, length - 1), repeat, ok,
+                    leader_offset, start_offset, end_offset));
+        } finally {
+            length = 0;
+            parity_errors = 0;
+        }
+    }
+
+    // true if the bytes up to last count down to 1, all with the same high bit
+    private boolean countdown(int last) {
+        int high = bytes[last] & 0x80;
+        for (int i = 0; i < last; i++) {
+            int b = bytes[i] & 0xff;
+            if ((b & 0x80) != high || (b & 0x7f) != 1 + last - i) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+
+/**
+ * One device driven by the {@link SessionManager}: its controller and recorder.
+ * <p>
+ * Every session streams on its own reader and writer threads and only shares the
+ * read-only {@link TapeImage} with the others, so a slow or stuck device holds
+ * up nobody but itself.
+ */
+public class DeviceSession {
+    private final String name;
+    private final HardwareController controller;
+    private final CassetteRecorder recorder;
+
+    DeviceSession(String name) {
+        this.name = name;
+        controller = SessionManager.createController(name);
+        recorder = new CassetteRecorder(controller);
+        controller.setRecorder(recorder);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public HardwareController getController() {
+        return controller;
+    }
+
+    public CassetteRecorder getRecorder() {
+        return recorder;
+    }
+
+    public boolean isConnected() {
+        return controller.isConnected();
+    }
+
+    /**
+     * Ejects a stopped cassette and inserts the file, returns false if the recorder is busy.
+     */
+    public boolean insert(File file) {
+        if (recorder.getState() == CassetteRecorder.State.STOPPED) recorder.ejectTape();
+        if (recorder.getState() != CassetteRecorder.State.EJECTED) return false;
+        recorder.setTape(file);
+        return true;
+    }
+
+    /**
+     * One line of the dashboard, see {@link SessionManager#getDashboard()}.
+     */
+    String status() {
+        Tape tape = recorder.getTape();
+        String tape_name = "-";
+        String position = "-";
+        if (tape != null) {
+            tape_name = tape.getFile().getName();
+            position = String.format("%s/%s", time(recorder.getPlayedTime(tape)), time(tape.getTotalTime()));
+        }
+        StreamMetrics metrics = controller.getMetrics();
+        return String.format(SessionManager.DASHBOARD_ROW, name, isConnected() ? recorder.getState() : "OFFLINE",
+                tape_name, position, metrics.getThroughput(), metrics.getUnderruns());
+    }
+
+    private static String time(double seconds) {
+        int total = (int) seconds;
+        return String.format("%d:%02d", total / 60, total % 60);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Shortens leader tones and pauses while a tape is streamed, the file is not touched.
+ * <p>
+ * A leader is a run of pulses within {@link #TOLERANCE} of each other; only the
+ * first {@code leader} pulses of a run are played. Extended pauses in a row are
+ * played up to {@code pause} seconds in all, the rest is dropped. Both limits
+ * leave loaders enough to sync on, but a turbo loader that writes long runs of
+ * one pulse as data would be broken by it, so every tape can be set back to
+ * exact playback.
+ * <p>
+ * Off unless {@code -Duno2tap.fastLoad=true}. Per-tape profiles are read from
+ * ~/.uno2tap/fastload.properties (or {@code -Duno2tap.fastLoad.profiles}), keyed
+ * by file name: {@code exact}, {@code fast} or {@code leader,pause}, e.g.
+ * {@code GAME.TAP=exact} or {@code DEMO.TAP=1500,0.3}.
+ */
+public class FastLoadFilter {
+    public static final boolean ENABLED = Boolean.getBoolean("uno2tap.fastLoad");
+    public static final int DEFAULT_LEADER = Integer.getInteger("uno2tap.fastLoad.leader", 3000);
+    public static final double DEFAULT_PAUSE = Double.parseDouble(System.getProperty("uno2tap.fastLoad.pause", "1.0"));
+    // TAP units two leader pulses may differ by
+    private static final int TOLERANCE = 2;
+
+    private final int leader;
+    private final long max_pause;
+    private final double clock;
+
+    private int run_value;
+    private int run_length;
+    // cycles played of the pauses in a row so far
+    private long pause_played;
+    private long saved_cycles;
+
+    public FastLoadFilter(int leader, double pause, TapHeader header) {
+        this.leader = leader;
+        this.clock = header.getClock();
+        this.max_pause = (long) (pause * clock);
+    }
+
+    /**
+     * Filter for the tape as its profile says, null for exact playback.
+     */
+    public static FastLoadFilter forTape(Tape tape) {
+        String profile = ENABLED ? "fast" : "exact";
+        if (tape.getFile() != null) {
+            String own = loadProfiles().getProperty(tape.getFile().getName());
+            if (own != null) profile = own.trim().toLowerCase();
+        }
+        if (profile.equals("exact")) return null;
+        if (tape.getHeader().isHalfWave()) {
+            Log.write("Fast load: half wave tapes are played exactly");
+            return null;
+        }
+
+        int leader = DEFAULT_LEADER;
+        double pause = DEFAULT_PAUSE;
+        if (!profile.equals("fast")) {
+            String[] fields = profile.split(",");
+            try {
+                leader = Integer.parseInt(fields[0].trim());
+                if (fields.length > 1) pause = Double.parseDouble(fields[1].trim());
+            } catch (NumberFormatException e) {
+                Log.write("Fast load: bad profile \"" + profile + "\" for " + tape.getFile().getName() + ", playing exactly");
+                return null;
+            }
+        }
+        return new FastLoadFilter(leader, pause, tape.getHeader());
+    }
+
+    private static Properties loadProfiles() {
+        Properties profiles = new Properties();
+        String path = System.getProperty("uno2tap.fastLoad.profiles");
+        File file = path != null ? new File(path) : new File(new File(System.getProperty("user.home"), ".uno2tap"), "fastload.properties");
+        if (!file.exists()) return profiles;
+        try (InputStream in = new FileInputStream(file)) {
+            profiles.load(in);
+        } catch (IOException e) {
+            Log.write("Fast load: could not read " + file + ": " + e.getMessage());
+        }
+        return profiles;
+    }
+
+    /**
+     * Cycles to play for the next value, 0 to drop it.
+     */
+    public long filter(long cycles, boolean extended) {
+        if (extended) {
+            run_length = 0;
+            long kept = Math.min(cycles, Math.max(0, max_pause - pause_played));
+            pause_played += kept;
+            saved_cycles += cycles - kept;
+            return kept;
+        }
+        pause_played = 0;
+        int value = (int) (cycles >>> 3);
+        if (run_length > 0 && Math.abs(value - run_value) <= TOLERANCE) {
+            run_length++;
+        } else {
+            run_value = value;
+            run_length = 1;
+        }
+        if (run_length <= leader) return cycles;
+        saved_cycles += cycles;
+        return 0;
+    }
+
+    /**
+     * Forgets the current run, for a change of position.
+     */
+    public void reset() {
+        run_length = 0;
+        pause_played = 0;
+    }
+
+    public double getSavedTime() {
+        return saved_cycles / clock;
+    }
+
+    public void resetSaved() {
+        saved_cycles = 0;
+    }
+
+    /**
+     * Seconds saved playing the tape from its current position to the end, the tape is not moved.
+     */
+    public static double estimate(Tape tape, FastLoadFilter filter) {
+        FastLoadFilter dry = new FastLoadFilter(filter.leader, filter.max_pause / filter.clock, tape.getHeader());
+        TapHeader header = tape.getHeader();
+        byte[] buf = new byte[65536];
+        int pos = tape.getPos();
+        int end = tape.getDataEnd();
+        while (pos < end) {
+            int n = Math.min(buf.length, end - pos);
+            tape.get(pos, buf, 0, n);
+            int i = 0;
+            while (i < n) {
+                int b = buf[i] & 0xff;
+                int length = header.valueLength(b);
+                // an extended value split by the buffer end is read again with the next one
+                if (i + length > n && pos + n < end) break;
+                long cycles = length == 1 ? header.valueCycles(b, 0, 0, 0)
+                        : header.valueCycles(b, i + 1 < n ? buf[i + 1] & 0xff : 0,
+                        i + 2 < n ? buf[i + 2] & 0xff : 0, i + 3 < n ? buf[i + 3] & 0xff : 0);
+                dry.filter(cycles, length > 1);
+                i += length;
+            }
+            pos += i;
+        }
+        return dry.getSavedTime();
+    }
+
+    @Override
+    public String toString() {
+        return "leaders of " + leader + " pulses, pauses up to " + String.format("%.2f", max_pause / clock) + " s";
+    }
+}
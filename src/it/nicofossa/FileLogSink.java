@@ -0,0 +1,102 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Appends the log to a file, rotating it to file.1 ... file.N when it grows past
+ * a size limit ({@code -Duno2tap.logFileSize} bytes, default 1 MiB; the oldest of
+ * {@code -Duno2tap.logFiles} files, default 3, is deleted).
+ */
+public class FileLogSink implements LogSink {
+    private static final long MAX_SIZE = Long.getLong("uno2tap.logFileSize", 1 << 20);
+    private static final int MAX_FILES = Integer.getInteger("uno2tap.logFiles", 3);
+
+    private final File file;
+    private final long max_size;
+    private final int max_files;
+    // only used from the drain thread
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final Date date = new Date();
+    private Writer writer;
+    private long size;
+
+    public FileLogSink(File file) throws IOException {
+        this(file, MAX_SIZE, MAX_FILES);
+    }
+
+    public FileLogSink(File file, long max_size, int max_files) throws IOException {
+        this.file = file;
+        this.max_size = max_size;
+        this.max_files = Math.max(1, max_files);
+        open();
+    }
+
+    private void open() throws IOException {
+        size = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        new File(file.getPath() + "." + (max_files - 1)).delete();
+        for (int i = max_files - 2; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        if (max_files > 1) file.renameTo(new File(file.getPath() + ".1"));
+        else file.delete();
+        open();
+    }
+
+    @Override
+    public synchronized void publish(List<Log.Entry> batch) {
+        if (writer == null) return;
+        try {
+            for (Log.Entry entry : batch) {
+                date.setTime(entry.time);
+                String line = format.format(date) + " " + entry.level + " " + entry.message + "\n";
+                if (size > 0 && size + line.length() > max_size) rotate();
+                writer.write(line);
+                size += line.length();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = null;
+    }
+}
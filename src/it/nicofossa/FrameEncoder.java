@@ -0,0 +1,250 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns tape data into the payload of the frames sent to the firmware.
+ * <p>
+ * Raw frames carry TAP bytes as they are. Compressed frames, used when the
+ * firmware announces {@link #CAP_RLE}, replace a run of identical pulses with
+ * {@code 0x01 count value}; 0x01 (8 cycles) is far too short to be a real pulse,
+ * a literal one is sent as the run {@code 0x01 0x01 0x01}. Extended values go
+ * through untouched. The encoded stream is continuous: a token can be split
+ * across two frames, the firmware keeps its decoding state between them.
+ * <p>
+ * With a {@link FastLoadFilter} set the tape is read through it first; the file
+ * offset of every value is kept so {@link #unread(Tape)} still lands on the first
+ * value not sent. A token only partly written to a frame counts as not sent.
+ */
+public class FrameEncoder {
+    public static final int CAP_RLE = 0x01;
+    public static final int RLE_ESCAPE = 0x01;
+    // shorter runs are not worth a 3 byte token
+    private static final int MIN_RUN = 4;
+    private static final int MAX_RUN = 255;
+    private static final int PADDING = 0x20;
+
+    private final boolean compressed;
+
+    // input read ahead from the tape
+    private final byte[] in = new byte[1024];
+    private int inPos;
+    private int inEnd;
+    // file offset of each byte of in, only kept when filtering
+    private final int[] inOffsets = new int[1024];
+
+    // tape data waiting to go through the filter, src[0] is at file offset srcBase
+    private FastLoadFilter filter;
+    private final byte[] src = new byte[512];
+    private int srcPos;
+    private int srcEnd;
+    private int srcBase;
+
+    // encoded bytes that did not fit in the previous frame, the token starts at file offset pendingOffset
+    private final byte[] pending = new byte[4];
+    private int pendingPos;
+    private int pendingEnd;
+    private int pendingOffset;
+
+    private long pulses;
+
+    public FrameEncoder(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Sets the filter the tape goes through, null for exact playback. Resets the encoder.
+     */
+    public void setFilter(FastLoadFilter filter) {
+        this.filter = filter;
+        reset();
+    }
+
+    public FastLoadFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Forgets buffered data, to be called when the tape position changes.
+     */
+    public void reset() {
+        inPos = inEnd = 0;
+        pendingPos = pendingEnd = 0;
+        srcPos = srcEnd = 0;
+        if (filter != null) filter.reset();
+    }
+
+    /**
+     * Gives the bytes read ahead but not encoded yet back to the tape and forgets them.
+     */
+    public void unread(Tape tape) {
+        tape.setPos(position(tape));
+        reset();
+    }
+
+    /**
+     * File offset of the first value not written whole to a frame yet; the tape
+     * position is ahead of it by what has been read ahead.
+     */
+    public int position(Tape tape) {
+        if (pendingPos < pendingEnd) return pendingOffset;
+        if (filter != null) {
+            if (inEnd > inPos) return inOffsets[inPos];
+            if (srcEnd > srcPos) return srcBase + srcPos;
+            return tape.getPos();
+        }
+        return tape.getPos() - (inEnd - inPos);
+    }
+
+    /**
+     * True when everything up to the end of the tape data has been encoded.
+     */
+    public boolean isFinished(Tape tape) {
+        return pendingPos == pendingEnd && inPos == inEnd && srcPos == srcEnd && tape.getPos() >= tape.getDataEnd();
+    }
+
+    /**
+     * Pulses encoded so far, runs counted one by one.
+     */
+    public long getPulses() {
+        return pulses;
+    }
+
+    /**
+     * Fills the rest of frame from the tape, padding with short pulses at its end.
+     */
+    public void encode(Tape tape, ByteBuffer frame) {
+        if (!compressed && filter == null) {
+            int write_size = Math.min(frame.remaining(), tape.getDataEnd() - tape.getPos());
+            if (write_size > 0) {
+                tape.read(frame, write_size);
+                pulses += write_size;
+            }
+        } else {
+            while (frame.hasRemaining()) {
+                if (pendingPos == pendingEnd && !nextToken(tape)) break;
+                while (frame.hasRemaining() && pendingPos < pendingEnd) frame.put(pending[pendingPos++]);
+            }
+        }
+        while (frame.hasRemaining()) frame.put((byte) PADDING);
+    }
+
+    // encodes the next pulse or run into pending, false at the end of the tape
+    private boolean nextToken(Tape tape) {
+        if (inEnd - inPos < MAX_RUN + 4) refill(tape);
+        if (inPos == inEnd) return false;
+
+        pendingPos = pendingEnd = 0;
+        pendingOffset = filter != null ? inOffsets[inPos] : tape.getPos() - (inEnd - inPos);
+        int value = in[inPos] & 0xff;
+        if (value == 0) {
+            // extended value, copied as it is
+            int n = Math.min(4, inEnd - inPos);
+            for (int i = 0; i < n; i++) pending[pendingEnd++] = in[inPos++];
+            pulses++;
+            return true;
+        }
+
+        if (!compressed) {
+            pending[pendingEnd++] = (byte) value;
+            inPos++;
+            pulses++;
+            return true;
+        }
+
+        int run = 1;
+        while (run < MAX_RUN && inPos + run < inEnd && (in[inPos + run] & 0xff) == value) run++;
+        if (run >= MIN_RUN || value == RLE_ESCAPE) {
+            pending[pendingEnd++] = (byte) RLE_ESCAPE;
+            pending[pendingEnd++] = (byte) run;
+            pending[pendingEnd++] = (byte) value;
+            inPos += run;
+            pulses += run;
+        } else {
+            pending[pendingEnd++] = (byte) value;
+            inPos++;
+            pulses++;
+        }
+        return true;
+    }
+
+    private void refill(Tape tape) {
+        int left = inEnd - inPos;
+        System.arraycopy(in, inPos, in, 0, left);
+        if (filter != null) System.arraycopy(inOffsets, inPos, inOffsets, 0, left);
+        inPos = 0;
+        inEnd = left;
+        if (filter != null) {
+            refillFiltered(tape);
+            return;
+        }
+        int n = Math.min(in.length - inEnd, tape.getDataEnd() - tape.getPos());
+        if (n <= 0) return;
+        tape.read(in, inEnd, n);
+        inEnd += n;
+    }
+
+    private void refillFiltered(Tape tape) {
+        TapHeader header = tape.getHeader();
+        while (inEnd <= in.length - 4) {
+            if (srcEnd - srcPos < 4 && tape.getPos() < tape.getDataEnd()) readSource(tape);
+            if (srcPos == srcEnd) break;
+
+            int value = src[srcPos] & 0xff;
+            int length = Math.min(header.valueLength(value), srcEnd - srcPos);
+            int offset = srcBase + srcPos;
+            boolean extended = header.valueLength(value) > 1;
+            long cycles = header.valueCycles(value,
+                    length > 1 ? src[srcPos + 1] & 0xff : 0,
+                    length > 2 ? src[srcPos + 2] & 0xff : 0,
+                    length > 3 ? src[srcPos + 3] & 0xff : 0);
+            long kept = filter.filter(cycles, extended);
+            if (kept == cycles) {
+                for (int i = 0; i < length; i++) {
+                    inOffsets[inEnd] = offset;
+                    in[inEnd++] = src[srcPos + i];
+                }
+            } else if (kept > 0) {
+                // a shortened pause
+                for (int i = 0; i < 4; i++) inOffsets[inEnd + i] = offset;
+                in[inEnd++] = 0;
+                in[inEnd++] = (byte) kept;
+                in[inEnd++] = (byte) (kept >> 8);
+                in[inEnd++] = (byte) (kept >> 16);
+            }
+            srcPos += length;
+        }
+    }
+
+    private void readSource(Tape tape) {
+        int left = srcEnd - srcPos;
+        System.arraycopy(src, srcPos, src, 0, left);
+        srcPos = 0;
+        srcEnd = left;
+        srcBase = tape.getPos() - srcEnd;
+        int n = Math.min(src.length - srcEnd, tape.getDataEnd() - tape.getPos());
+        if (n <= 0) return;
+        tape.read(src, srcEnd, n);
+        srcEnd += n;
+    }
+}
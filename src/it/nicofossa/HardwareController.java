@@ -16,9 +16,15 @@
   */
 package it.nicofossa;
 
+import java.io.File;
+
 public abstract class HardwareController {
-    private boolean playing;
+    // set by the I/O threads, read by everyone
+    private volatile boolean playing;
+    private volatile boolean recording;
     private OnHardwareEventListener onHardwareEvent;
+    private final StreamMetrics metrics = new StreamMetrics();
+    private final PlaybackTracker playback = new PlaybackTracker();
 
     HardwareController(String name) {
     }
@@ -33,10 +39,31 @@ public abstract class HardwareController {
 
     abstract void stop();
 
+    /**
+     * Starts capturing what the C64 saves into a new TAP file.
+     */
+    abstract void record(File file);
+
     abstract void setRecorder(CassetteRecorder recorder);
 
     public interface OnHardwareEventListener {
         void onPlayStateChanged(boolean state);
+
+        void onRecordStateChanged(boolean state);
+    }
+
+    /**
+     * Streaming counters of this device, also published through JMX while connected.
+     */
+    public StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Position the device has played up to and how long its motor ran.
+     */
+    public PlaybackTracker getPlayback() {
+        return playback;
     }
 
     public boolean isPlaying() {
@@ -50,6 +77,17 @@ public abstract class HardwareController {
         }
     }
 
+    public boolean isRecording() {
+        return recording;
+    }
+
+    protected void setRecording(boolean recording) {
+        this.recording = recording;
+        if (onHardwareEvent != null) {
+            onHardwareEvent.onRecordStateChanged(recording);
+        }
+    }
+
     public void setOnHardwareEvent(OnHardwareEventListener onHardwareEvent) {
         this.onHardwareEvent = onHardwareEvent;
     }
@@ -0,0 +1,73 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Whole image loaded into a heap array.
+ */
+public class HeapTapeStorage implements TapeStorage {
+    private final byte[] tap_buf;
+
+    public HeapTapeStorage(File tapfile) throws IOException {
+        long length = tapfile.length();
+        if (length > Integer.MAX_VALUE) throw new IOException("File too big: " + tapfile);
+        tap_buf = new byte[(int) length];
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(tapfile))) {
+            int totalBytesRead = 0;
+            while (totalBytesRead < tap_buf.length) {
+                int bytesRead = input.read(tap_buf, totalBytesRead, tap_buf.length - totalBytesRead);
+                if (bytesRead < 0) {
+                    throw new EOFException("File truncated after " + totalBytesRead + " of " + tap_buf.length + " bytes");
+                }
+                totalBytesRead += bytesRead;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return tap_buf.length;
+    }
+
+    @Override
+    public int get(int pos) {
+        return tap_buf[pos] & 0xff;
+    }
+
+    @Override
+    public void get(int pos, byte[] dst, int off, int len) {
+        System.arraycopy(tap_buf, pos, dst, off, len);
+    }
+
+    @Override
+    public void get(int pos, ByteBuffer dst, int len) {
+        dst.put(tap_buf, pos, len);
+    }
+
+    @Override
+    public ByteBuffer slice(int pos, int len) {
+        return ByteBuffer.wrap(tap_buf, pos, len).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -16,25 +16,180 @@
   */
 package it.nicofossa;
 
-import javafx.application.Platform;
-import javafx.scene.control.TextArea;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Application log.
+ * <p>
+ * Writers only claim a slot of a lock-free ring and return; a daemon thread drains
+ * the ring every {@link #DRAIN_INTERVAL_MS} ms and hands the messages to the
+ * registered {@link LogSink}s in one batch, or prints them when there are none.
+ * When the ring is full messages are dropped and counted instead of blocking the
+ * caller. Messages below the current level are discarded on the spot, hot paths
+ * should still check {@link #isDebug()} before building the text.
+ * <p>
+ * The level comes from {@code -Duno2tap.logLevel} (DEBUG, INFO, WARN, ERROR,
+ * default INFO) and {@code -Duno2tap.logFile} adds a {@link FileLogSink}.
+ */
 public class Log {
-    private Log() {
+    public enum Level {DEBUG, INFO, WARN, ERROR}
+
+    /**
+     * A message as handed to the sinks.
+     */
+    public static final class Entry {
+        public final long time;
+        public final Level level;
+        public final String message;
+
+        Entry(long time, Level level, String message) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
     }
 
-    private static TextArea textArea;
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final int DRAIN_INTERVAL_MS = 20;
 
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    // next slot to claim / next slot to drain; slots are nulled before head moves past them
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong head = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static final List<LogSink> sinks = new CopyOnWriteArrayList<>();
+    private static volatile Level level = parseLevel(System.getProperty("uno2tap.logLevel"));
+    private static final Thread drainer;
 
-    public static void write(String message) {
-        if (textArea != null) {
-            Platform.runLater(() -> textArea.appendText(message + "\n"));
-        } else {
-            System.out.println(message);
+    static {
+        String file = System.getProperty("uno2tap.logFile");
+        if (file != null) {
+            try {
+                sinks.add(new FileLogSink(new File(file)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        drainer = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL_MS));
+                flush();
+            }
+        }, "Log drain");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log() {
+    }
+
+    private static Level parseLevel(String name) {
+        if (name != null) {
+            try {
+                return Level.valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + name + ", using INFO");
+            }
+        }
+        return Level.INFO;
+    }
+
+    public static void write(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public static void log(Level messageLevel, String message) {
+        if (messageLevel.compareTo(level) < 0) return;
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head.get() >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        ring.lazySet((int) seq & MASK, new Entry(System.currentTimeMillis(), messageLevel, message));
+    }
+
+    public static boolean isDebug() {
+        return level == Level.DEBUG;
     }
 
-    public static void setTextArea(TextArea _textArea) {
-        textArea = _textArea;
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static void addSink(LogSink sink) {
+        sinks.add(sink);
+    }
+
+    public static void removeSink(LogSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Hands everything logged so far to the sinks. Called by the drain thread, and
+     * by anyone who needs the messages out now (e.g. before exiting).
+     */
+    public static synchronized void flush() {
+        List<Entry> batch = new ArrayList<>();
+        long h = head.get();
+        long lost = dropped.sumThenReset();
+        if (lost > 0) batch.add(new Entry(System.currentTimeMillis(), Level.WARN, lost + " log messages dropped"));
+        while (h < tail.get()) {
+            int slot = (int) h & MASK;
+            Entry entry = ring.get(slot);
+            // claimed but not published yet, the rest comes with the next drain
+            if (entry == null) break;
+            ring.lazySet(slot, null);
+            batch.add(entry);
+            head.lazySet(++h);
+        }
+        if (batch.isEmpty()) return;
+
+        if (sinks.isEmpty()) {
+            StringBuilder text = new StringBuilder();
+            for (Entry entry : batch) text.append(entry.message).append('\n');
+            System.out.print(text);
+            return;
+        }
+        for (LogSink sink : sinks) {
+            try {
+                sink.publish(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
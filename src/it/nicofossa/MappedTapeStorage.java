@@ -0,0 +1,176 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Image accessed through a few fixed-size read-only mappings of the file.
+ * <p>
+ * At most {@link #MAX_WINDOWS} windows of {@link #WINDOW_SIZE} bytes are mapped at
+ * any time, the least recently used one is unmapped when another is needed, so the
+ * resident memory does not depend on the size of the image. Since a window can go
+ * away at any read, {@link #slice(int, int)} hands out copies.
+ */
+public class MappedTapeStorage implements TapeStorage {
+    private static final int WINDOW_SHIFT = 20;
+    private static final int WINDOW_SIZE = 1 << WINDOW_SHIFT;
+    private static final int MAX_WINDOWS = 2;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int size;
+
+    private final MappedByteBuffer[] windows = new MappedByteBuffer[MAX_WINDOWS];
+    private final int[] windowIds = new int[MAX_WINDOWS];
+    private final long[] lastUse = new long[MAX_WINDOWS];
+    private long useCounter;
+
+    public MappedTapeStorage(File tapfile) throws IOException {
+        file = new RandomAccessFile(tapfile, "r");
+        channel = file.getChannel();
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            close();
+            throw new IOException("File too big: " + tapfile);
+        }
+        size = (int) length;
+        for (int i = 0; i < MAX_WINDOWS; i++) windowIds[i] = -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int get(int pos) {
+        if (pos < 0 || pos >= size) throw new IndexOutOfBoundsException("Position " + pos + " out of " + size);
+        return window(pos >>> WINDOW_SHIFT).get(pos & (WINDOW_SIZE - 1)) & 0xff;
+    }
+
+    @Override
+    public synchronized void get(int pos, byte[] dst, int off, int len) {
+        if (pos < 0 || len < 0 || pos + len > size) {
+            throw new IndexOutOfBoundsException("Range " + pos + "+" + len + " out of " + size);
+        }
+        while (len > 0) {
+            MappedByteBuffer window = window(pos >>> WINDOW_SHIFT);
+            int inWindow = pos & (WINDOW_SIZE - 1);
+            int n = Math.min(len, WINDOW_SIZE - inWindow);
+            window.position(inWindow);
+            window.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public synchronized void get(int pos, ByteBuffer dst, int len) {
+        if (pos < 0 || len < 0 || pos + len > size) {
+            throw new IndexOutOfBoundsException("Range " + pos + "+" + len + " out of " + size);
+        }
+        while (len > 0) {
+            MappedByteBuffer window = window(pos >>> WINDOW_SHIFT);
+            int inWindow = pos & (WINDOW_SIZE - 1);
+            int n = Math.min(len, WINDOW_SIZE - inWindow);
+            window.limit(inWindow + n).position(inWindow);
+            dst.put(window);
+            window.clear();
+            pos += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer slice(int pos, int len) {
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        get(pos, copy, len);
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer window(int id) {
+        int victim = 0;
+        for (int i = 0; i < MAX_WINDOWS; i++) {
+            if (windowIds[i] == id) {
+                lastUse[i] = ++useCounter;
+                return windows[i];
+            }
+            if (lastUse[i] < lastUse[victim]) victim = i;
+        }
+
+        long base = (long) id << WINDOW_SHIFT;
+        if (windows[victim] != null) unmap(windows[victim]);
+        try {
+            windows[victim] = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW_SIZE, size - base));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map tape window at " + base, e);
+        }
+        windowIds[victim] = id;
+        lastUse[victim] = ++useCounter;
+        return windows[victim];
+    }
+
+    /**
+     * Releases a mapping now instead of whenever the garbage collector finds it,
+     * otherwise seeking around a large image piles up mappings. Best effort, there
+     * is no public API for it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception ignored) {
+        }
+        try {
+            // java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < MAX_WINDOWS; i++) {
+            if (windows[i] != null) unmap(windows[i]);
+            windows[i] = null;
+            windowIds[i] = -1;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
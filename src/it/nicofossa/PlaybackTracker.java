@@ -0,0 +1,120 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the device really is while playing, as opposed to how far the host has read.
+ * <p>
+ * With protocol 2 every frame request after the initial credits means the device
+ * has finished a transfer, so the tape offset reached by each frame in flight is
+ * queued when it is sent and taken off when its slot comes back; the offset of the
+ * last one taken off has been played. The writer adds and the reader removes, through
+ * a single producer/single consumer ring like {@link StreamMetrics}. The time the
+ * motor ran while playing is counted as well, it stops during multi-stage loaders.
+ */
+public class PlaybackTracker {
+    // more than the transfers the firmware can hold
+    private static final int IN_FLIGHT = 64;
+
+    private final int[] frameEnds = new int[IN_FLIGHT];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile boolean perSlot;
+    private volatile int playedPos;
+    // requests still to come that are credits, not finished transfers
+    private volatile int initialCredits;
+
+    private volatile boolean motorOn = true;
+    private long motorSince;
+    private long motorNanos;
+
+    /**
+     * Starts tracking a run that begins at pos. Without per-slot requests (protocol 1)
+     * nothing is tracked and the read position has to do.
+     */
+    public synchronized void start(int pos, int credits, boolean perSlot) {
+        head.set(tail.get());
+        playedPos = pos;
+        initialCredits = credits;
+        motorNanos = 0;
+        motorSince = System.nanoTime();
+        this.perSlot = perSlot;
+        running = true;
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        if (motorOn) motorNanos += System.nanoTime() - motorSince;
+    }
+
+    /**
+     * Called by the writer for every frame sent while playing, with the offset reached.
+     */
+    public void frameSent(int end) {
+        long t = tail.get();
+        if (t - head.get() >= IN_FLIGHT) return;
+        frameEnds[(int) (t % IN_FLIGHT)] = end;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Called by the reader for every frame request.
+     */
+    public void slotFreed() {
+        if (initialCredits > 0) {
+            initialCredits--;
+            return;
+        }
+        long h = head.get();
+        if (h >= tail.get()) return;
+        playedPos = frameEnds[(int) (h % IN_FLIGHT)];
+        head.lazySet(h + 1);
+    }
+
+    public synchronized void setMotor(boolean on) {
+        if (on == motorOn) return;
+        long now = System.nanoTime();
+        if (!on && running) motorNanos += now - motorSince;
+        motorSince = now;
+        motorOn = on;
+    }
+
+    public boolean isMotorOn() {
+        return motorOn;
+    }
+
+    /**
+     * Offset the device has played up to, or fallback when that is not known.
+     */
+    public int getPlayedPos(int fallback) {
+        return running && perSlot ? playedPos : fallback;
+    }
+
+    /**
+     * Seconds the motor has run during the current or last run.
+     */
+    public synchronized double getMotorTime() {
+        long nanos = motorNanos;
+        if (running && motorOn) nanos += System.nanoTime() - motorSince;
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A TAP image synthesized from a .prg file or the programs in a .t64 container,
+ * as the Kernal would save them: for each program a leader, the header block,
+ * a pause, a shorter leader and the data block. Each block is written twice,
+ * like the ROM does, see {@link CbmBlock}.
+ * <p>
+ * Nothing is generated in advance. The image is a list of segments (runs of
+ * one pulse, pauses and blocks) whose length and duration are known from their
+ * size alone. Every byte of a block is 20 pulses of the same total length,
+ * whatever its bits. A read finds its segment by binary search and computes
+ * the pulses it covers; the time of any offset is computed the same way.
+ */
+public class PrgTapeStorage implements TapeStorage, TapeTimeline {
+    private static final int SHORT = 0x30;
+    private static final int MEDIUM = 0x42;
+    private static final int LONG = 0x56;
+    // marker and nine bit pairs, a 0 and a 1 take the same time
+    private static final int PULSES_PER_BYTE = 20;
+    private static final long BYTE_CYCLES = (LONG + MEDIUM + 9 * (SHORT + MEDIUM)) * 8L;
+
+    private static final int HEADER_LEADER = 0x6a00;
+    private static final int DATA_LEADER = 0x1500;
+    private static final int REPEAT_GAP = 0x4f;
+    private static final int TRAILER = 0x4e;
+    private static final long HEADER_PAUSE = 0x064000;
+    private static final long FILE_PAUSE = 0x100000;
+    private static final int MAX_EXTENDED = 0xffffff;
+
+    private static final int T64_ENTRIES = 0x40;
+    private static final int T64_ENTRY_SIZE = 32;
+
+    private final byte[] header;
+    private final List<Segment> segments = new ArrayList<>();
+    private int[] starts;
+    private long[] cycles;
+    private int[] values;
+    private int size;
+
+    public PrgTapeStorage(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith(".t64")) {
+            readT64(file, data);
+        } else {
+            if (data.length < 3) throw new IOException("Program too short: " + file);
+            String name = file.getName().replaceFirst("\\.[^.]*$", "");
+            addProgram(petscii(name), (data[0] & 0xff) | (data[1] & 0xff) << 8, Arrays.copyOfRange(data, 2, data.length));
+        }
+        if (segments.isEmpty()) throw new IOException("No programs in " + file);
+
+        starts = new int[segments.size() + 1];
+        cycles = new long[segments.size() + 1];
+        values = new int[segments.size() + 1];
+        int pos = TapHeader.SIZE;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            starts[i] = pos;
+            cycles[i + 1] = cycles[i] + segment.cycles();
+            values[i + 1] = values[i] + segment.values();
+            pos += segment.length();
+        }
+        starts[segments.size()] = pos;
+        size = pos;
+        header = TapHeader.create(size - TapHeader.SIZE);
+    }
+
+    public static boolean isProgram(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        return name.endsWith(".prg") || name.endsWith(".t64");
+    }
+
+    private void readT64(File file, byte[] data) throws IOException {
+        if (data.length < T64_ENTRIES || !new String(data, 0, 3, StandardCharsets.US_ASCII).equals("C64")) {
+            throw new IOException("Not a T64 file: " + file);
+        }
+        int max = Math.max(1, (data[0x22] & 0xff) | (data[0x23] & 0xff) << 8);
+        List<int[]> entries = new ArrayList<>();
+        for (int i = 0; i < max; i++) {
+            int e = T64_ENTRIES + i * T64_ENTRY_SIZE;
+            if (e + T64_ENTRY_SIZE > data.length) break;
+            // 1 is a normal tape file, snapshots are skipped below and free entries here
+            if (data[e] == 0) continue;
+            int start = word(data, e + 2);
+            int end = word(data, e + 4);
+            int offset = (int) (word(data, e + 8) | (long) word(data, e + 10) << 16);
+            entries.add(new int[]{e, start, end, offset});
+        }
+        // the end address is often wrong, the next file in the container limits the length
+        entries.sort((a, b) -> Integer.compare(a[3], b[3]));
+        for (int i = 0; i < entries.size(); i++) {
+            int[] entry = entries.get(i);
+            if (data[entry[0]] != 1) continue;
+            int limit = i + 1 < entries.size() ? entries.get(i + 1)[3] : data.length;
+            int length = Math.min(limit, data.length) - entry[3];
+            if (entry[2] > entry[1]) length = Math.min(length, entry[2] - entry[1]);
+            if (entry[3] < 0 || length <= 0) {
+                Log.write("Skipping a damaged entry of " + file.getName());
+                continue;
+            }
+            addProgram(Arrays.copyOfRange(data, entry[0] + 16, entry[0] + 32), entry[1],
+                    Arrays.copyOfRange(data, entry[3], entry[3] + length));
+        }
+    }
+
+    private static int word(byte[] data, int pos) {
+        return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8;
+    }
+
+    private static byte[] petscii(String name) {
+        byte[] out = new byte[16];
+        Arrays.fill(out, (byte) 0x20);
+        String upper = name.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < Math.min(16, upper.length()); i++) {
+            char c = upper.charAt(i);
+            out[i] = (byte) (c >= 0x20 && c < 0x60 ? c : '?');
+        }
+        return out;
+    }
+
+    private void addProgram(byte[] name, int start, byte[] program) {
+        byte[] block = new byte[CbmBlock.HEADER_SIZE];
+        Arrays.fill(block, (byte) 0x20);
+        int end = Math.min(0xffff, start + program.length);
+        block[0] = CbmBlock.TYPE_PROGRAM;
+        block[1] = (byte) start;
+        block[2] = (byte) (start >> 8);
+        block[3] = (byte) end;
+        block[4] = (byte) (end >> 8);
+        System.arraycopy(name, 0, block, 5, Math.min(16, name.length));
+
+        if (!segments.isEmpty()) segments.add(new Pause(FILE_PAUSE));
+        addBlock(HEADER_LEADER, block);
+        segments.add(new Pause(HEADER_PAUSE));
+        addBlock(DATA_LEADER, program);
+    }
+
+    private void addBlock(int leader, byte[] payload) {
+        segments.add(new Run(SHORT, leader));
+        segments.add(new Block(payload, false));
+        segments.add(new Run(SHORT, REPEAT_GAP));
+        segments.add(new Block(payload, true));
+        segments.add(new Run(SHORT, TRAILER));
+    }
+
+    // segment holding data offset pos, which must be past the header
+    private int segmentAt(int pos) {
+        int i = Arrays.binarySearch(starts, pos);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int pos) {
+        if (pos < TapHeader.SIZE) return header[pos] & 0xff;
+        int i = segmentAt(pos);
+        return segments.get(i).get(pos - starts[i]);
+    }
+
+    @Override
+    public void get(int pos, byte[] dst, int off, int len) {
+        while (len > 0 && pos < TapHeader.SIZE) {
+            dst[off++] = header[pos++];
+            len--;
+        }
+        if (len == 0) return;
+        int i = segmentAt(pos);
+        while (len > 0) {
+            Segment segment = segments.get(i);
+            int n = Math.min(len, starts[i + 1] - pos);
+            segment.get(pos - starts[i], dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+            i++;
+        }
+    }
+
+    @Override
+    public void get(int pos, ByteBuffer dst, int len) {
+        byte[] buf = new byte[len];
+        get(pos, buf, 0, len);
+        dst.put(buf);
+    }
+
+    @Override
+    public ByteBuffer slice(int pos, int len) {
+        byte[] buf = new byte[len];
+        get(pos, buf, 0, len);
+        return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int valueStart(int pos) {
+        if (pos <= TapHeader.SIZE) return TapHeader.SIZE;
+        if (pos >= size) return size;
+        int i = segmentAt(pos);
+        return starts[i] + segments.get(i).valueStart(pos - starts[i]);
+    }
+
+    @Override
+    public long cyclesBefore(int pos) {
+        if (pos <= TapHeader.SIZE) return 0;
+        if (pos >= size) return cycles[segments.size()];
+        int i = segmentAt(pos);
+        return cycles[i] + segments.get(i).cyclesBefore(pos - starts[i]);
+    }
+
+    @Override
+    public int valuesBefore(int pos) {
+        if (pos <= TapHeader.SIZE) return 0;
+        if (pos >= size) return values[segments.size()];
+        int i = segmentAt(pos);
+        return values[i] + segments.get(i).valuesBefore(pos - starts[i]);
+    }
+
+    /**
+     * Part of the image; offsets are relative to its start, values start where
+     * {@link #valueStart(int)} says.
+     */
+    private interface Segment {
+        int length();
+
+        long cycles();
+
+        int values();
+
+        int get(int off);
+
+        default void get(int off, byte[] dst, int dstOff, int len) {
+            for (int i = 0; i < len; i++) dst[dstOff + i] = (byte) get(off + i);
+        }
+
+        int valueStart(int off);
+
+        long cyclesBefore(int off);
+
+        int valuesBefore(int off);
+    }
+
+    // count pulses of the same length
+    private static class Run implements Segment {
+        private final int value;
+        private final int count;
+
+        Run(int value, int count) {
+            this.value = value;
+            this.count = count;
+        }
+
+        public int length() {
+            return count;
+        }
+
+        public long cycles() {
+            return count * value * 8L;
+        }
+
+        public int values() {
+            return count;
+        }
+
+        public int get(int off) {
+            return value;
+        }
+
+        @Override
+        public void get(int off, byte[] dst, int dstOff, int len) {
+            Arrays.fill(dst, dstOff, dstOff + len, (byte) value);
+        }
+
+        public int valueStart(int off) {
+            return off;
+        }
+
+        public long cyclesBefore(int off) {
+            return off * value * 8L;
+        }
+
+        public int valuesBefore(int off) {
+            return off;
+        }
+    }
+
+    // silence as extended version 1 values of at most MAX_EXTENDED cycles
+    private static class Pause implements Segment {
+        private final long length;
+
+        Pause(long length) {
+            this.length = length;
+        }
+
+        public int length() {
+            return values() * 4;
+        }
+
+        public long cycles() {
+            return length;
+        }
+
+        public int values() {
+            return (int) ((length + MAX_EXTENDED - 1) / MAX_EXTENDED);
+        }
+
+        public int get(int off) {
+            int value = off / 4;
+            long part = Math.min(MAX_EXTENDED, length - (long) value * MAX_EXTENDED);
+            int b = off % 4;
+            return b == 0 ? 0 : (int) (part >> (8 * (b - 1))) & 0xff;
+        }
+
+        public int valueStart(int off) {
+            return off - off % 4;
+        }
+
+        public long cyclesBefore(int off) {
+            return Math.min(length, (long) (off / 4) * MAX_EXTENDED);
+        }
+
+        public int valuesBefore(int off) {
+            return off / 4;
+        }
+    }
+
+    /**
+     * Countdown, payload and checksum, 20 pulses a byte, then the long-short end marker.
+     */
+    private static class Block implements Segment {
+        private final byte[] payload;
+        private final boolean repeat;
+        private final int checksum;
+
+        Block(byte[] payload, boolean repeat) {
+            this.payload = payload;
+            this.repeat = repeat;
+            int sum = 0;
+            for (byte b : payload) sum ^= b;
+            checksum = sum & 0xff;
+        }
+
+        private int bytes() {
+            return 9 + payload.length + 1;
+        }
+
+        private int byteAt(int n) {
+            if (n < 9) return (repeat ? 0x09 : 0x89) - n;
+            if (n < 9 + payload.length) return payload[n - 9] & 0xff;
+            return checksum;
+        }
+
+        public int length() {
+            return bytes() * PULSES_PER_BYTE + 2;
+        }
+
+        public long cycles() {
+            return bytes() * BYTE_CYCLES + (LONG + SHORT) * 8L;
+        }
+
+        public int values() {
+            return length();
+        }
+
+        public int get(int off) {
+            int n = off / PULSES_PER_BYTE;
+            if (n >= bytes()) return off == length() - 2 ? LONG : SHORT;
+            int k = off % PULSES_PER_BYTE;
+            if (k == 0) return LONG;
+            if (k == 1) return MEDIUM;
+            int value = byteAt(n);
+            int bit_index = (k - 2) / 2;
+            // odd parity: the ninth bit makes the number of ones odd
+            int bit = bit_index < 8 ? (value >> bit_index) & 1 : 1 ^ (Integer.bitCount(value) & 1);
+            boolean first = (k - 2) % 2 == 0;
+            return (bit == 0) == first ? SHORT : MEDIUM;
+        }
+
+        public int valueStart(int off) {
+            return off;
+        }
+
+        public long cyclesBefore(int off) {
+            int n = Math.min(off / PULSES_PER_BYTE, bytes());
+            long total = n * BYTE_CYCLES;
+            for (int i = n * PULSES_PER_BYTE; i < off; i++) total += get(i) * 8L;
+            return total;
+        }
+
+        public int valuesBefore(int off) {
+            return off;
+        }
+    }
+}
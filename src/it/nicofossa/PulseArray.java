@@ -0,0 +1,126 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pulse lengths of a tape decoded once into primitive arrays.
+ * <p>
+ * Pulses are decoded lazily in chunks of {@link #CHUNK_SIZE}, located through the
+ * {@link TapeIndex} so any chunk can be filled without decoding the ones before.
+ * For version 2 images the two half waves are added up, so a pulse is always a
+ * full wave. Each pulse takes 8 bytes: its length in cycles and its file offset.
+ * Safe to share between threads, chunks are published once filled. Threads
+ * filling different chunks don't wait for each other; two threads filling the same
+ * chunk both decode it and the first one to finish wins.
+ */
+public class PulseArray {
+    public static final int CHUNK_SHIFT = 16;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private final TapeStorage storage;
+    private final TapHeader header;
+    private final TapeIndex index;
+    private final int valuesPerPulse;
+    private final int size;
+
+    private final AtomicReferenceArray<int[]> cycles;
+    private final AtomicReferenceArray<int[]> offsets;
+
+    public PulseArray(TapeStorage storage, TapHeader header, TapeIndex index) {
+        this.storage = storage;
+        this.header = header;
+        this.index = index;
+        valuesPerPulse = header.isHalfWave() ? 2 : 1;
+        size = index.getValueCount() / valuesPerPulse;
+        int chunks = (size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+        cycles = new AtomicReferenceArray<>(chunks);
+        offsets = new AtomicReferenceArray<>(chunks);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Length of the pulse in cycles.
+     */
+    public int get(int pulse) {
+        int chunk = pulse >>> CHUNK_SHIFT;
+        int[] data = cycles.get(chunk);
+        if (data == null) data = fill(chunk);
+        return data[pulse & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * File offset of the first byte of the pulse.
+     */
+    public int getOffset(int pulse) {
+        if (pulse >= size) return header.getDataEnd();
+        int chunk = pulse >>> CHUNK_SHIFT;
+        int[] starts = offsets.get(chunk);
+        if (starts == null) {
+            fill(chunk);
+            starts = offsets.get(chunk);
+        }
+        return starts[pulse & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * Number of the pulse the byte at pos belongs to.
+     */
+    public int indexOf(int pos) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (getOffset(mid) <= pos) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    private int[] fill(int chunk) {
+        int first = chunk << CHUNK_SHIFT;
+        int count = Math.min(CHUNK_SIZE, size - first);
+        int[] data = new int[count];
+        int[] starts = new int[count];
+
+        int end = header.getDataEnd();
+        int pos = index.value2pos(first * valuesPerPulse);
+        byte[] buf = new byte[4];
+        for (int i = 0; i < count; i++) {
+            starts[i] = pos;
+            long total = 0;
+            for (int v = 0; v < valuesPerPulse; v++) {
+                int n = Math.min(4, end - pos);
+                storage.get(pos, buf, 0, n);
+                for (int k = n; k < 4; k++) buf[k] = 0;
+                int first_byte = buf[0] & 0xff;
+                total += header.valueCycles(first_byte, buf[1] & 0xff, buf[2] & 0xff, buf[3] & 0xff);
+                pos += header.valueLength(first_byte);
+            }
+            data[i] = (int) Math.min(total, Integer.MAX_VALUE);
+        }
+
+        // offsets first: a chunk with cycles always has its offsets
+        offsets.compareAndSet(chunk, null, starts);
+        cycles.compareAndSet(chunk, null, data);
+        return cycles.get(chunk);
+    }
+}
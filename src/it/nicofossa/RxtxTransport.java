@@ -0,0 +1,162 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.SerialPort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+
+/**
+ * Serial port through the RXTX library, which needs its native part installed.
+ */
+public class RxtxTransport implements Transport {
+    private static final int TIME_OUT = 2000;
+    // read() returns now and then with nothing so the reader can see it was disconnected
+    private static final int READ_TIMEOUT_MS = 600;
+
+    private final String name;
+    private final int rate;
+    private SerialPort serial_port;
+    private InputStream serial_input;
+    private OutputStream serial_output;
+
+    public RxtxTransport(String name, int rate) {
+        this.name = name;
+        this.rate = rate;
+    }
+
+    /**
+     * True if the RXTX classes and native library can be loaded.
+     */
+    public static boolean isAvailable() {
+        try {
+            CommPortIdentifier.getPortIdentifiers();
+            return true;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    public static String[] getPortNames() {
+        ArrayList<String> list = new ArrayList<>();
+        Enumeration<?> portEnum = CommPortIdentifier.getPortIdentifiers();
+
+        while (portEnum.hasMoreElements()) {
+            CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
+            list.add(currPortId.getName());
+        }
+
+        return list.toArray(new String[0]);
+    }
+
+    @Override
+    public void open() throws IOException {
+        CommPortIdentifier portId = null;
+        Enumeration<?> portEnum = CommPortIdentifier.getPortIdentifiers();
+
+        while (portEnum.hasMoreElements()) {
+            CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
+            if (currPortId.getName().equals(name)) {
+                portId = currPortId;
+                break;
+            }
+        }
+
+        if (portId == null) throw new IOException("Could not find serial port.");
+
+        try {
+            // open serial port, and use class name for the appName.
+            serial_port = (SerialPort) portId.open(this.getClass().getName(), TIME_OUT);
+
+            // set port parameters
+            serial_port.setSerialPortParams(rate,
+                    SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1,
+                    SerialPort.PARITY_NONE);
+
+            // let read() block until data arrives, waking up now and then to see if we are still connected
+            serial_port.enableReceiveThreshold(1);
+            serial_port.enableReceiveTimeout(READ_TIMEOUT_MS);
+
+            // open the streams
+            serial_input = serial_port.getInputStream();
+            serial_output = serial_port.getOutputStream();
+        } catch (Exception e) {
+            close();
+            throw new IOException(e.toString(), e);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n;
+        if (dst.hasArray()) {
+            n = serial_input.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) dst.position(dst.position() + n);
+        } else {
+            byte[] buf = new byte[dst.remaining()];
+            n = serial_input.read(buf, 0, buf.length);
+            if (n > 0) dst.put(buf, 0, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (src.hasArray()) {
+            serial_output.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            byte[] buf = new byte[src.remaining()];
+            src.get(buf);
+            serial_output.write(buf);
+        }
+    }
+
+    @Override
+    public boolean setRate(int rate) {
+        try {
+            serial_port.setSerialPortParams(rate,
+                    SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1,
+                    SerialPort.PARITY_NONE);
+            return true;
+        } catch (Exception e) {
+            Log.write("Could not set " + rate + " baud: " + e);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serial_input != null) serial_input.close();
+            if (serial_output != null) serial_output.close();
+        } catch (Exception ignored) {
+        }
+        serial_input = null;
+        serial_output = null;
+        if (serial_port != null) serial_port.close();
+        serial_port = null;
+    }
+}
@@ -16,17 +16,21 @@
   */
 package it.nicofossa;
 
-import gnu.io.CommPortIdentifier;
-import gnu.io.SerialPort;
-
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class SerialHardwareController extends HardwareController {
-    private static final int TIME_OUT = 2000;
     private static final int DATA_RATE = 115200;
     private static final int CMD_NOP = 'Z';
     private static final int CMD_PING = 'P';
@@ -35,50 +39,130 @@ public class SerialHardwareController extends HardwareController {
     private static final int CMD_STOP = 'r';
     private static final int CMD_SENSE_ON = 'S';
     private static final int CMD_SENSE_OFF = 's';
-    private static final int buf_size = 48;
-
-
-    private SerialPort serial_port;
-    private InputStream serial_input;
-    private OutputStream serial_output;
-    private boolean connected;
+    private static final int CMD_VERSION = 'V';
+    private static final int CMD_COMPRESS_ON = 'C';
+    private static final int CMD_BAUD = 'B';
+    private static final int CMD_ECHO = 'T';
+    private static final int CAP_BAUD = 0x02;
+    static final int CAP_MOTOR = 0x04;
+    // rates the firmware can switch to, by index; the first one is DATA_RATE
+    private static final int[] RATES = {DATA_RATE, 250000, 500000, 1000000};
+    // highest rate tried, -Duno2tap.baud=115200 turns the negotiation off
+    private static final int MAX_RATE = Integer.getInteger("uno2tap.baud", RATES[RATES.length - 1]);
+    // the firmware goes back to the old rate if no ping arrives within a second
+    private static final int BAUD_FALLBACK_MS = 1200;
+    // longest the device may take to play what it has buffered before a stop
+    private static final int STOP_ACK_MS = 3000;
+    private static final int ECHO_CHUNK = 32;
+    private static final int ECHO_CHUNKS = 8;
+    private static final boolean COMPRESSION = !"false".equals(System.getProperty("uno2tap.compress"));
+    // transfer size and ring depth of firmware that does not answer CMD_VERSION
+    private static final int V1_XFR_SIZE = 48;
+    private static final int V1_NUM_XFRS = 8;
+    // the arduino serial buffer is 63 bytes, a transfer must fit in it
+    private static final int MAX_XFR_SIZE = 63;
+    private static final int VERSION_REPLY_SIZE = 4;
+    private static final int VERSION_ATTEMPTS = 6;
+    private static final int VERSION_TIMEOUT_MS = 500;
+    // sense off is repeated this often while idle, as a keep alive
+    private static final int KEEP_ALIVE_MS = 600;
+    // queue markers that are not commands for the device
+    private static final int REQUEST_FRAME = -1;
+    private static final int WAKE_UP = -2;
+
+
+    private Transport transport;
+    private volatile boolean connected;
     private String deviceName;
     private CassetteRecorder recorder;
     //private boolean playing;
-    private boolean cassette_motor_on;
 
-    private ConcurrentLinkedQueue<Integer> commandsQueue;
-    private int last_status;
+    private LinkedBlockingQueue<Integer> commandsQueue;
+    // when each command character was last queued, for the command latency
+    private final AtomicLongArray queued_at = new AtomicLongArray(128);
+
+    // negotiated with the firmware, see negotiate()
+    private volatile int protocol_version = 1;
+    private volatile int buf_size = V1_XFR_SIZE;
+    private volatile int num_xfrs = V1_NUM_XFRS;
+    private final CountDownLatch version_received = new CountDownLatch(1);
+    private final byte[] version_reply = new byte[VERSION_REPLY_SIZE];
+    private int version_reply_pos = -1;
+    private int capabilities;
+
+    // baud rate negotiation, see negotiate_baud()
+    private volatile int rate = DATA_RATE;
+    private volatile double measured_throughput;
+    private volatile CountDownLatch baud_ack;
+    private volatile int baud_ack_value;
+    private boolean baud_ack_pending;
+    private final Semaphore ping_replies = new Semaphore(0);
+    private volatile byte[] echo_buf;
+    private int echo_pos;
+    private volatile CountDownLatch echo_done;
+    private long echo_first_nanos;
+    private long echo_last_nanos;
+
+    // frames the device has room for ('N' received but not yet answered)
+    private final AtomicInteger credits = new AtomicInteger();
+    // commands that came while playing with no slot free, sent with the next credit
+    private final ArrayDeque<Integer> deferred_commands = new ArrayDeque<>();
+
+    // where incoming bytes go while recording, null otherwise
+    private volatile TapCapture capture;
+    // set when the end marker arrived, the bytes after it are protocol again
+    private volatile boolean capture_ended;
+    // an extended value being received while recording, it may be the end marker
+    private final byte[] capture_extended = new byte[4];
+    private int capture_extended_len;
+
+    // set once the end of the tape has been streamed, until the next play
+    private boolean end_reached;
+
+    // raw until the firmware says it can decode runs
+    private FrameEncoder encoder = new FrameEncoder(false);
+
+    // reused for every frame so streaming does not allocate
+    private ByteBuffer frame = ByteBuffer.allocate(V1_XFR_SIZE);
+    private final byte[] read_buf = new byte[64];
+    private final ByteBuffer read_buffer = ByteBuffer.wrap(read_buf);
+    // single bytes and short commands
+    private final ByteBuffer command_buf = ByteBuffer.allocate(MAX_XFR_SIZE);
 
     public SerialHardwareController(String name) {
         super(name);
         deviceName = name;
-        commandsQueue = new ConcurrentLinkedQueue<Integer>();
+        commandsQueue = new LinkedBlockingQueue<Integer>();
     }
 
     @Override
     public void connect() {
         if (isConnected()) throw new IllegalStateException("Already connected!");
-        serialConnect(deviceName);
-        new CommunicationThread().start();
+        transport = create_transport(deviceName);
+        try {
+            transport.open();
+        } catch (IOException e) {
+            Log.write("Could not open " + deviceName + ": " + e.getMessage());
+            transport.close();
+            transport = null;
+            return;
+        }
+        frame = allocate(V1_XFR_SIZE);
+        connected = true;
+        Log.write("Connected to serial device: " + deviceName);
+        send_command(CMD_SENSE_OFF);
+        getMetrics().register(deviceName);
+        new ReaderThread().start();
+        new WriterThread().start();
     }
 
     @Override
     public void disconnect() {
         if (!isConnected()) return;
         connected = false;
-
-        try {
-            if (serial_input != null) serial_input.close();
-            if (serial_output != null) serial_output.close();
-        } catch (Exception ignored) {
-        }
-        serial_input = null;
-        serial_output = null;
-
-        if (serial_port != null) serial_port.close();
-        serial_port = null;
-
+        commandsQueue.add(WAKE_UP);
+        getMetrics().unregister();
+        transport.close();
     }
 
     @Override
@@ -86,45 +170,35 @@ public class SerialHardwareController extends HardwareController {
         return connected;
     }
 
-    private void serialConnect(String devname) {
-        CommPortIdentifier portId = null;
-        Enumeration portEnum = CommPortIdentifier.getPortIdentifiers();
+    /**
+     * Link to the named device, see {@link Transport#forDevice(String, int)}.
+     */
+    protected Transport create_transport(String devname) {
+        return Transport.forDevice(devname, DATA_RATE);
+    }
 
-        while (portEnum.hasMoreElements()) {
-            CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
-            if (devname != null) {
-                if (currPortId.getName().equals(devname)) {
-                    portId = currPortId;
-                    break;
-                }
-            }
-        }
+    /**
+     * Changes the speed of the open link, returns false if it cannot do it.
+     */
+    protected boolean set_rate(int rate) {
+        return transport.setRate(rate);
+    }
 
-        if (portId == null) {
-            Log.write("Could not find serial port.");
-            return;
-        }
+    // frames go out of direct buffers when the transport can use them without a copy
+    private ByteBuffer allocate(int size) {
+        return transport.prefersDirectBuffers() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
 
-        try {
-            // open serial port, and use class name for the appName.
-            serial_port = (SerialPort) portId.open(this.getClass().getName(), TIME_OUT);
-
-            // set port parameters
-            serial_port.setSerialPortParams(DATA_RATE,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-
-            // open the streams
-            serial_input = serial_port.getInputStream();
-            serial_output = serial_port.getOutputStream();
-
-            connected = true;
-            Log.write("Connected to serial device: " + portId.getName());
-            send_command(CMD_SENSE_OFF);
-        } catch (Exception e) {
-            System.err.println(e.toString());
-        }
+    private void send(int command) throws IOException {
+        command_buf.clear();
+        command_buf.put((byte) command).flip();
+        transport.write(command_buf);
+    }
+
+    private void send(byte[] data) throws IOException {
+        command_buf.clear();
+        command_buf.put(data).flip();
+        transport.write(command_buf);
     }
 
     @Override
@@ -135,115 +209,501 @@ public class SerialHardwareController extends HardwareController {
         //playing = true;
     }
 
+    @Override
+    public void record(File file) {
+        if (isPlaying() || isRecording() || capture != null) return;
+        try {
+            capture_ended = false;
+            capture_extended_len = 0;
+            capture = new TapCapture(file);
+        } catch (IOException e) {
+            Log.write("Could not create " + file + ": " + e.getMessage());
+            return;
+        }
+        send_command(CMD_SENSE_ON);
+        send_command(CMD_RECORD);
+    }
+
     @Override
     public void stop() {
-        if (!isPlaying()) return;
+        if (!isPlaying() && !isRecording()) return;
         send_command(CMD_STOP);
         send_command(CMD_SENSE_OFF);
         //playing = false;
     }
 
     private void send_command(int cmd) {
+        queued_at.set(cmd & 0x7f, System.nanoTime());
         commandsQueue.add(cmd);
     }
 
-    public class CommunicationThread extends Thread {
+    /**
+     * Blocks on the serial input and handles what the device sends.
+     */
+    public class ReaderThread extends Thread {
+        ReaderThread() {
+            super("uno2tap-reader");
+            setDaemon(true);
+        }
+
         @Override
         public void run() {
-            Log.write("Communication thread started.");
-            while (connected) {
-                try {
-                    process_input();
-                    communicate_commands();
-                } catch (Exception e) {
-                    //e.printStackTrace();
+            Log.write("Reader thread started.");
+            long started = System.nanoTime();
+            try {
+                while (connected) {
+                    read_buffer.clear();
+                    int readed = transport.read(read_buffer);
+                    if (readed == 0) continue;
+                    if (readed < 0) {
+                        Log.write("Serial stream closed.");
+                        break;
+                    }
+                    TapCapture recording = capture;
+                    int used = 0;
+                    if (recording != null && !capture_ended) {
+                        // everything the firmware sends while recording is pulse data, up to the end marker
+                        used = capture_input(recording, readed);
+                    }
+                    for (int i = used; i < readed; i++) {
+                        process_input(read_buf[i]);
+                    }
                 }
+            } catch (Exception e) {
+                if (connected) e.printStackTrace();
             }
-            Log.write("Communication thread terminated.");
+            logCpuUsage("Reader", started);
+            Log.write("Reader thread terminated.");
             connected = false;
+            commandsQueue.add(WAKE_UP);
         }
     }
 
-    private void communicate_commands() {
-        if (commandsQueue.peek() != null) {
-            try {
-                int command = commandsQueue.poll();
-                Log.write("Sending command " + ((char) command) + "...");
+    /**
+     * Sleeps until a command or a frame request is queued and sends it.
+     */
+    public class WriterThread extends Thread {
+        WriterThread() {
+            super("uno2tap-writer");
+            setDaemon(true);
+        }
 
-                serial_output.write(command);
-                if (isPlaying()) {
-                    for (int i = 0; i < buf_size - 1; i++) serial_output.write(0);
+        @Override
+        public void run() {
+            Log.write("Writer thread started.");
+            long started = System.nanoTime();
+            try {
+                negotiate();
+                while (connected) {
+                    Integer command = commandsQueue.poll(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+                    if (command == null) {
+                        if (!isPlaying() && !isRecording()) send_command(CMD_SENSE_OFF);
+                        continue;
+                    }
+                    if (command == REQUEST_FRAME) {
+                        if (isPlaying() && take_credit()) {
+                            if (deferred_commands.isEmpty()) tap_data_send();
+                            else send_deferred();
+                        }
+                    } else if (command != WAKE_UP) {
+                        communicate_command(command);
+                    }
                 }
+            } catch (InterruptedException ignored) {
+            }
+            logCpuUsage("Writer", started);
+            Log.write("Writer thread terminated.");
+        }
+    }
 
-                if (command == CMD_PLAY) {
-                    setPlaying(true);
-                }
-                if (command == CMD_STOP) {
-                    setPlaying(false);
-                }
-            } catch (Exception e) {
+    /**
+     * Asks the firmware for its protocol version. Protocol 2 firmware replies with
+     * 'V', version, transfer size, number of transfers and a capability byte, and
+     * then grants one credit ('N') per free transfer slot instead of acknowledging
+     * each transfer, so the host can keep several frames in flight. Older firmware
+     * ignores the command and the lockstep protocol 1 is used.
+     * The arduino resets when the port is opened, so the request is repeated
+     * until the bootloader has handed over.
+     */
+    private void negotiate() throws InterruptedException {
+        for (int i = 0; i < VERSION_ATTEMPTS && connected; i++) {
+            try {
+                send(CMD_VERSION);
+            } catch (IOException e) {
                 e.printStackTrace();
-
+                return;
             }
+            if (version_received.await(VERSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) break;
         }
 
-        if (!isPlaying()) {
+        if (version_received.getCount() == 0 && (version_reply[0] & 0xff) >= 2) {
+            int xfr_size = version_reply[1] & 0xff;
+            int xfrs = version_reply[2] & 0xff;
+            if (xfr_size >= 2 && xfr_size <= MAX_XFR_SIZE && xfrs >= 1) {
+                protocol_version = version_reply[0] & 0xff;
+                buf_size = xfr_size;
+                num_xfrs = xfrs;
+                frame = allocate(buf_size);
+                capabilities = version_reply[3] & 0xff;
+                if ((capabilities & FrameEncoder.CAP_RLE) != 0 && COMPRESSION) {
+                    try {
+                        send(CMD_COMPRESS_ON);
+                        encoder = new FrameEncoder(true);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                Log.write("Invalid transfer size " + xfr_size + "x" + xfrs + ", using protocol 1");
+            }
+        }
+        Log.write("Using protocol " + protocol_version + ", " + num_xfrs + " transfers of " + buf_size + " bytes"
+                + (encoder.isCompressed() ? ", compressed" : ""));
+        if ((capabilities & CAP_BAUD) != 0) negotiate_baud();
+    }
 
-            last_status++;
-            if (last_status > 5) {
+    /**
+     * Steps the link up through the faster rates the firmware offers while they work.
+     * <p>
+     * For each rate the firmware acknowledges 'B' index at the old rate, switches and
+     * waits for a ping at the new one, falling back by itself if none comes. The host
+     * then echoes a few chunks of data through the firmware ('T' count bytes) to
+     * measure the round trip throughput and check for corrupted bytes. The first
+     * rate failing either test ends the search, the last good one is kept. The base
+     * rate is measured too, so the throughput is known whichever rate is kept.
+     */
+    private void negotiate_baud() throws InterruptedException {
+        int current = 0;
+        double throughput = echo_test();
+        if (throughput <= 0) Log.write("Echo test failed at " + RATES[0] + " baud");
+        for (int i = 1; i < RATES.length && RATES[i] <= MAX_RATE && connected; i++) {
+            if (!switch_rate(i, current)) break;
+            double measured = echo_test();
+            if (measured <= 0) {
+                Log.write("Echo test failed at " + RATES[i] + " baud");
+                // still talking, ask to go back and confirm it
+                switch_rate(current, i);
+                break;
+            }
+            current = i;
+            throughput = measured;
+        }
+        measured_throughput = throughput;
+        Log.write("Serial link at " + rate + " baud" + (throughput > 0 ? String.format(", %.0f bytes/s measured", throughput) : ""));
+    }
 
-                send_command(CMD_SENSE_OFF);
-                last_status = 0;
+    // asks the firmware to move to RATES[index], returns false if it ended up on RATES[previous]
+    private boolean switch_rate(int index, int previous) throws InterruptedException {
+        try {
+            baud_ack = new CountDownLatch(1);
+            ping_replies.drainPermits();
+            send(new byte[]{CMD_BAUD, (byte) index});
+            if (!baud_ack.await(VERSION_TIMEOUT_MS, TimeUnit.MILLISECONDS) || baud_ack_value != index) {
+                return false;
+            }
+            if (!set_rate(RATES[index])) {
+                // the firmware falls back by itself without our ping
+                Thread.sleep(BAUD_FALLBACK_MS);
+                return false;
             }
+            rate = RATES[index];
+            Thread.sleep(10);
+            send(CMD_PING);
+            if (ping_replies.tryAcquire(VERSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return true;
+
+            Log.write("No ping reply at " + RATES[index] + " baud");
+            Thread.sleep(BAUD_FALLBACK_MS);
+            set_rate(RATES[previous]);
+            rate = RATES[previous];
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // bytes per second echoed back through the firmware, 0 if anything went wrong.
+    // Only the time between the first and last byte of each echo is counted, the
+    //  firmware polls for commands slowly while idle
+    private double echo_test() throws InterruptedException {
+        byte[] sent = new byte[ECHO_CHUNK + 2];
+        byte[] received = new byte[ECHO_CHUNK];
+        long elapsed = 0;
+        for (int chunk = 0; chunk < ECHO_CHUNKS; chunk++) {
+            sent[0] = CMD_ECHO;
+            sent[1] = ECHO_CHUNK;
+            for (int i = 0; i < ECHO_CHUNK; i++) sent[i + 2] = (byte) (chunk * 37 + i * 11);
+            echo_done = new CountDownLatch(1);
+            echo_pos = 0;
+            echo_buf = received;
             try {
-                Thread.sleep(100);
-            } catch (Exception e) {
+                send(sent);
+            } catch (IOException e) {
                 e.printStackTrace();
+                return 0;
+            }
+            boolean complete = echo_done.await(VERSION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            echo_buf = null;
+            if (!complete) return 0;
+            for (int i = 0; i < ECHO_CHUNK; i++) {
+                if (received[i] != sent[i + 2]) return 0;
             }
+            elapsed += echo_last_nanos - echo_first_nanos;
         }
+        return (ECHO_CHUNK - 1) * ECHO_CHUNKS * 1e9 / Math.max(1, elapsed);
     }
 
-    private void process_input() throws Exception {
-        byte[] serial_buf = new byte[1];
-        while (serial_input.available() > 0) {
-            int readed = serial_input.read(serial_buf, 0, 1);
-            if (readed != 1) {
-                Log.write("No char received!");
-                return;
+    public int getBaudRate() {
+        return rate;
+    }
+
+    /**
+     * Round trip throughput measured at the chosen baud rate, 0 if the firmware cannot
+     * change its rate or the echo test failed.
+     */
+    public double getMeasuredThroughput() {
+        return measured_throughput;
+    }
+
+    public int getProtocolVersion() {
+        return protocol_version;
+    }
+
+    private static void logCpuUsage(String name, long started) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported()) return;
+        long cpu = threads.getCurrentThreadCpuTime();
+        long wall = System.nanoTime() - started;
+        Log.write(String.format("%s thread used %d ms of CPU in %d ms (%.1f%%)",
+                name, cpu / 1000000, wall / 1000000, wall > 0 ? 100.0 * cpu / wall : 0.0));
+    }
+
+    private void communicate_command(int command) {
+        try {
+            if (Log.isDebug()) Log.debug("Sending command " + ((char) command) + "...");
+
+            if (isPlaying()) {
+                // while playing every transfer is a whole frame, taking a slot on the device.
+                // Without a free slot a command waits for the next credit; a stop goes out
+                // anyway, the device looks for it in its serial buffer
+                if (protocol_version >= 2 && !take_credit() && command != CMD_STOP) {
+                    deferred_commands.add(command);
+                    return;
+                }
+                send_command_frame(command);
+            } else {
+                if (command == CMD_PLAY) {
+                    credits.set(0);
+                    end_reached = false;
+                    prepare_filter();
+                    encoder.reset();
+                    getMetrics().clearRequests();
+                    getMetrics().reset();
+                    Tape tape = recorder.getTape();
+                    if (tape != null) getPlayback().start(tape.getPos(), num_xfrs, protocol_version >= 2);
+                }
+                send(command);
             }
+            getMetrics().commandSent(System.nanoTime() - queued_at.get(command & 0x7f));
 
-            switch (serial_buf[0]) {
-                // request for tap data
-                case 'N':
-                    tap_data_send();
-                    break;
-                // motor control on
-                case 'M':
-                    Log.write("Cassette motor on");
-                    cassette_motor_on = true;
-                    break;
-                // motor control off
-                case 'm':
-                    Log.write("Cassette motor off");
-                    cassette_motor_on = false;
-                    break;
-                // ping reply
-                case 'P':
-                    Log.write("Ping response received");
-                    break;
-                // error
-                case 'E':
-                    Log.write("Error");
-                    break;
-                default:
-                    Log.write("Unrecognised command: " + serial_buf[0]);
-                    break;
+            if (command == CMD_PLAY) {
+                setPlaying(true);
+            }
+            if (command == CMD_RECORD) {
+                setRecording(true);
             }
+            if (command == CMD_STOP) {
+                if (isRecording()) {
+                    // pulse bytes sent before the stop may still be on their way
+                    await_stopped();
+                    finish_capture();
+                    setRecording(false);
+                } else {
+                    // rewind over what the device did not play before anyone sees the stop
+                    if (recorder.getTape() != null) encoder.unread(recorder.getTape());
+                    getPlayback().stop();
+                    setPlaying(false);
+                    while (!deferred_commands.isEmpty()) send(deferred_commands.poll());
+                    Log.write("Stream: " + getMetrics());
+                    Log.write(String.format("Motor ran %.1f s", getPlayback().getMotorTime()));
+                    FastLoadFilter filter = encoder.getFilter();
+                    if (filter != null) Log.write(String.format("Fast load saved %.1f s", filter.getSavedTime()));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void send_deferred() throws InterruptedException {
+        int command = deferred_commands.poll();
+        try {
+            send_command_frame(command);
+            getMetrics().commandSent(System.nanoTime() - queued_at.get(command & 0x7f));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // one credit if there is any left, never going below zero
+    private boolean take_credit() {
+        return credits.getAndUpdate(c -> c > 0 ? c - 1 : 0) > 0;
+    }
+
+    private void send_command_frame(int command) throws IOException, InterruptedException {
+        frame.clear();
+        frame.put((byte) command);
+        while (frame.hasRemaining()) frame.put((byte) 0);
+        write_frame();
+        // a command frame takes a slot too, only the stop frame is never handed back
+        if (command == CMD_STOP) await_stopped();
+        else getPlayback().frameSent(encoder.position(recorder.getTape()));
+    }
+
+    /**
+     * The device plays the frames it has buffered before it reaches the stop, and
+     * keeps asking for more meanwhile. A ping is only read, and answered, once it
+     * has stopped, so after the reply no request of this run can still arrive and
+     * a new play cannot be fed by them. When recording, the pulse bytes still on
+     * their way arrive before the end marker and the reply.
+     */
+    private void await_stopped() throws IOException, InterruptedException {
+        ping_replies.drainPermits();
+        send(CMD_PING);
+        if (!ping_replies.tryAcquire(STOP_ACK_MS, TimeUnit.MILLISECONDS)) {
+            Log.write("The device did not confirm the stop");
+        }
+    }
+
+    // the tape profile is read again on every play, so edits apply without reloading
+    private void prepare_filter() {
+        Tape tape = recorder.getTape();
+        FastLoadFilter filter = tape != null ? FastLoadFilter.forTape(tape) : null;
+        encoder.setFilter(filter);
+        if (filter == null) return;
+
+        double saved = FastLoadFilter.estimate(tape, filter);
+        double left = tape.getTotalTime() - tape.getElapsedTime();
+        Log.write(String.format("Fast load (%s): %.1f s instead of %.1f s, %.1f s saved",
+                filter, left - saved, left, saved));
+    }
+
+    /**
+     * Writes the pulse bytes of read_buf to the capture, up to the end marker the
+     * firmware sends when recording stops: an extended value of 0 cycles, which no
+     * pulse can have. Returns the number of bytes used.
+     */
+    private int capture_input(TapCapture recording, int length) throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (capture_extended_len == 0) {
+                if (read_buf[i] != 0) continue;
+                recording.write(read_buf, start, i - start);
+                capture_extended[capture_extended_len++] = 0;
+            } else {
+                capture_extended[capture_extended_len++] = read_buf[i];
+                if (capture_extended_len < capture_extended.length) continue;
+                capture_extended_len = 0;
+                if ((capture_extended[1] | capture_extended[2] | capture_extended[3]) == 0) {
+                    capture_ended = true;
+                    return i + 1;
+                }
+                recording.write(capture_extended, 0, capture_extended.length);
+            }
+            start = i + 1;
+        }
+        recording.write(read_buf, start, length - start);
+        return length;
+    }
+
+    private void finish_capture() {
+        TapCapture recording = capture;
+        capture = null;
+        if (recording == null) return;
+        try {
+            recording.close();
+        } catch (IOException e) {
+            Log.write("Recording failed: " + e.getMessage());
+        }
+    }
+
+    private void process_input(byte input) {
+        byte[] echo = echo_buf;
+        if (echo != null) {
+            if (echo_pos == 0) echo_first_nanos = System.nanoTime();
+            echo[echo_pos++] = input;
+            if (echo_pos == echo.length) {
+                echo_last_nanos = System.nanoTime();
+                echo_buf = null;
+                echo_done.countDown();
+            }
+            return;
+        }
+        if (baud_ack_pending) {
+            baud_ack_pending = false;
+            baud_ack_value = input & 0xff;
+            if (baud_ack != null) baud_ack.countDown();
+            return;
+        }
+        if (version_reply_pos >= 0) {
+            version_reply[version_reply_pos++] = input;
+            if (version_reply_pos == VERSION_REPLY_SIZE) {
+                version_reply_pos = -1;
+                version_received.countDown();
+            }
+            return;
+        }
+
+        switch (input) {
+            // request for tap data, one credit per free transfer slot
+            case 'N':
+                credits.incrementAndGet();
+                getPlayback().slotFreed();
+                getMetrics().frameRequested();
+                commandsQueue.add(REQUEST_FRAME);
+                break;
+            // version reply, followed by its fields
+            case 'V':
+                version_reply_pos = 0;
+                break;
+            // motor control on
+            case 'M':
+                // also reported on every play, only changes are worth a line
+                if (!getPlayback().isMotorOn()) Log.write("Cassette motor on");
+                getPlayback().setMotor(true);
+                break;
+            // motor control off
+            case 'm':
+                if (getPlayback().isMotorOn()) Log.write("Cassette motor off");
+                getPlayback().setMotor(false);
+                break;
+            // baud rate change acknowledged, followed by the rate index
+            case 'B':
+                baud_ack_pending = true;
+                break;
+            // ping reply
+            case 'P':
+                ping_replies.release();
+                if (Log.isDebug()) Log.debug("Ping response received");
+                break;
+            // error
+            case 'E':
+                getMetrics().underrun();
+                if (Log.isDebug()) Log.debug("Buffer underrun");
+                break;
+            default:
+                getMetrics().unknownByte();
+                if (Log.isDebug()) Log.debug("Unrecognised command: " + input);
+                break;
         }
     }
 
     private void tap_data_send() {
-        if (recorder.getTape().getPos() >= recorder.getTape().getSize()) {
+        Tape tape = recorder.getTape();
+        // requests still coming in before the stop is processed must not replay the rewound tape
+        if (end_reached) return;
+        if (encoder.isFinished(tape)) {
+            end_reached = true;
             Log.write("Tape end reached");
             try {
                 Thread.sleep(100);
@@ -251,46 +711,46 @@ public class SerialHardwareController extends HardwareController {
                 e.printStackTrace();
             }
             stop();
-            recorder.getTape().rewind();
+            tape.rewind();
             return;
         }
 
-        int tap_remaining = recorder.getTape().getSize() - recorder.getTape().getPos();
-        int write_size;
-        if (tap_remaining >= buf_size - 1) {
-            write_size = buf_size - 1;
-        } else {
-            write_size = tap_remaining;
-        }
+        frame.clear();
+        frame.put((byte) CMD_NOP);
+        encoder.encode(tape, frame);
 
         try {
-            serial_output.write(CMD_NOP);
-            serial_output.write(recorder.getTape().getNByte(write_size), 0, write_size);
-
-            while (write_size < buf_size - 1) {
-                serial_output.write(0x20);
-                write_size++;
-            }
+            write_frame();
+            getPlayback().frameSent(encoder.position(tape));
+            getMetrics().frameSent(frame.position());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // the whole frame in one write; afterwards position is still the frame length
+    private void write_frame() throws IOException {
+        frame.flip();
+        transport.write(frame);
+    }
+
     @Override
     public void setRecorder(CassetteRecorder recorder) {
         this.recorder = recorder;
     }
 
 
+    /**
+     * Serial ports RXTX knows of, or the USB ttys of a Linux box (as tty: names) without RXTX.
+     */
     public static String[] getAllowedDeviceNames() {
-        ArrayList<String> list = new ArrayList<>();
-        Enumeration portEnum = CommPortIdentifier.getPortIdentifiers();
+        if (RxtxTransport.isAvailable()) return RxtxTransport.getPortNames();
 
-        while (portEnum.hasMoreElements()) {
-            CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
-            list.add(currPortId.getName());
+        ArrayList<String> list = new ArrayList<>();
+        File[] devices = new File("/dev").listFiles((dir, name) -> name.startsWith("ttyUSB") || name.startsWith("ttyACM"));
+        if (devices != null) {
+            for (File device : devices) list.add(TtyTransport.PREFIX + device.getPath());
         }
-
         return list.toArray(new String[0]);
     }
 }
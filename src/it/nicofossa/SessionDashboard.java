@@ -0,0 +1,119 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.TextInputDialog;
+import javafx.scene.control.ToolBar;
+import javafx.scene.layout.BorderPane;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Window driving a {@link SessionManager}: opens devices, inserts one tape in all
+ * of them, plays and stops them together and shows how each one is doing,
+ * refreshed twice a second.
+ */
+public class SessionDashboard {
+    private static final long REFRESH_NANOS = 500000000L;
+
+    private final SessionManager manager = new SessionManager();
+    private final Stage stage = new Stage();
+    private final TextArea table = new TextArea();
+    private final AnimationTimer timer = new AnimationTimer() {
+        private long last;
+
+        @Override
+        public void handle(long now) {
+            if (now - last < REFRESH_NANOS) return;
+            last = now;
+            table.setText(manager.getDashboard());
+        }
+    };
+
+    public SessionDashboard() {
+        Button openAllButton = new Button("Open all ports");
+        Button openButton = new Button("Open...");
+        Button insertButton = new Button("Insert in all...");
+        Button playButton = new Button("Play all");
+        Button stopButton = new Button("Stop all");
+        Button closeButton = new Button("Close all");
+
+        openAllButton.setOnMouseClicked(event -> inBackground(manager::openAll));
+        openButton.setOnMouseClicked(event -> openClick());
+        insertButton.setOnMouseClicked(event -> insertClick());
+        playButton.setOnMouseClicked(event -> manager.playAll());
+        stopButton.setOnMouseClicked(event -> manager.stopAll());
+        closeButton.setOnMouseClicked(event -> inBackground(manager::closeAll));
+
+        table.setEditable(false);
+        table.setStyle("-fx-font-family: monospace;");
+
+        BorderPane root = new BorderPane();
+        root.setTop(new ToolBar(openAllButton, openButton, insertButton, playButton, stopButton, closeButton));
+        root.setCenter(table);
+
+        stage.setTitle("uno2tap sessions");
+        stage.setScene(new Scene(root, 760, 300));
+        stage.setOnHidden(event -> {
+            timer.stop();
+            inBackground(manager::closeAll);
+        });
+    }
+
+    public void show() {
+        timer.start();
+        stage.show();
+    }
+
+    private void openClick() {
+        TextInputDialog dialog = new TextInputDialog("virtual#1,virtual#2");
+        dialog.setTitle("Open devices");
+        dialog.setContentText("Device names, comma separated");
+        Optional<String> result = dialog.showAndWait();
+        if (!result.isPresent()) return;
+
+        List<String> names = new ArrayList<>();
+        for (String name : result.get().split(",")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        inBackground(() -> manager.open(names));
+    }
+
+    private void insertClick() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Select a TAP file...");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("C64 TAP file", "*.tap"));
+        File file = fileChooser.showOpenDialog(stage);
+        if (file != null) manager.insertAll(file);
+    }
+
+    // opening and closing wait on the devices, never on the FX thread
+    private static void inBackground(Runnable task) {
+        Thread thread = new Thread(task, "Sessions");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs several recorders at once, one per device.
+ * <p>
+ * Sessions are opened and closed on a thread each, so a port that takes long to
+ * answer does not hold up the others; playing and stopping only queue commands.
+ * Tapes inserted in several sessions share one {@link TapeImage}.
+ */
+public class SessionManager {
+    static final String DASHBOARD_ROW = "%-16s %-9s %-24s %-11s %10.0f %9d";
+    private static final String DASHBOARD_HEADER = String.format("%-16s %-9s %-24s %-11s %10s %9s",
+            "device", "state", "tape", "position", "bytes/s", "underruns");
+    private static final long OPEN_TIMEOUT_MS = 10000;
+
+    private final List<DeviceSession> sessions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Controller for the device name, simulated for the names {@link SimulatedHardwareController} knows.
+     */
+    public static HardwareController createController(String name) {
+        return SimulatedHardwareController.isVirtual(name)
+                ? new SimulatedHardwareController(name)
+                : new SerialHardwareController(name);
+    }
+
+    /**
+     * Opens a session on every serial port that has none yet.
+     */
+    public List<DeviceSession> openAll() {
+        return open(Arrays.asList(SerialHardwareController.getAllowedDeviceNames()));
+    }
+
+    /**
+     * Opens a session on each device, in parallel. Returns those that connected,
+     * the others are closed again, as are those that connect after the timeout.
+     */
+    public List<DeviceSession> open(List<String> names) {
+        List<Thread> threads = new ArrayList<>();
+        List<DeviceSession> opened = new ArrayList<>();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        for (String name : names) {
+            if (get(name) != null) continue;
+            Thread thread = new Thread(() -> {
+                DeviceSession session = new DeviceSession(name);
+                if (session.isConnected()) {
+                    synchronized (abandoned) {
+                        if (!abandoned.get()) {
+                            opened.add(session);
+                            return;
+                        }
+                    }
+                    Log.write("Session " + name + ": connected too late");
+                } else {
+                    Log.write("Session " + name + ": could not connect");
+                }
+                session.getRecorder().dispose();
+            }, "Open " + name);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        long deadline = System.currentTimeMillis() + OPEN_TIMEOUT_MS;
+        for (Thread thread : threads) {
+            try {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<DeviceSession> result;
+        synchronized (abandoned) {
+            abandoned.set(true);
+            result = new ArrayList<>(opened);
+        }
+        sessions.addAll(result);
+        Log.write("Sessions: " + result.size() + " opened, " + sessions.size() + " running");
+        return result;
+    }
+
+    public DeviceSession get(String name) {
+        for (DeviceSession session : sessions) {
+            if (session.getName().equals(name)) return session;
+        }
+        return null;
+    }
+
+    public List<DeviceSession> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    /**
+     * Inserts the file in every session that is not busy, all sharing one image.
+     */
+    public void insertAll(File file) {
+        for (DeviceSession session : sessions) {
+            try {
+                if (!session.insert(file)) Log.write("Session " + session.getName() + " is busy, tape not inserted");
+            } catch (IllegalArgumentException e) {
+                Log.write("Could not insert " + file + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    public void playAll() {
+        for (DeviceSession session : sessions) {
+            if (session.getRecorder().getState() == CassetteRecorder.State.STOPPED) session.getRecorder().play();
+        }
+    }
+
+    public void stopAll() {
+        for (DeviceSession session : sessions) {
+            CassetteRecorder.State state = session.getRecorder().getState();
+            if (state == CassetteRecorder.State.PLAYING || state == CassetteRecorder.State.RECORDING) {
+                session.getRecorder().stop();
+            }
+        }
+    }
+
+    public void close(DeviceSession session) {
+        sessions.remove(session);
+        Thread thread = new Thread(() -> session.getRecorder().dispose(), "Close " + session.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes every session, each on its own thread, and waits for them.
+     */
+    public void closeAll() {
+        List<Thread> threads = new ArrayList<>();
+        for (DeviceSession session : sessions) {
+            Thread thread = new Thread(() -> session.getRecorder().dispose(), "Close " + session.getName());
+            thread.start();
+            threads.add(thread);
+        }
+        sessions.clear();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * State, tape, position and throughput of every session as a text table.
+     */
+    public String getDashboard() {
+        StringBuilder text = new StringBuilder(DASHBOARD_HEADER).append('\n');
+        for (DeviceSession session : sessions) text.append(session.status()).append('\n');
+        return text.toString();
+    }
+}
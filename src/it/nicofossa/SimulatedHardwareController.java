@@ -0,0 +1,81 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+/**
+ * {@link SerialHardwareController} talking to a {@link VirtualArduino} instead of a serial port.
+ * <p>
+ * Device names are {@code virtual} (real time), {@code virtual:x<factor>} (accelerated)
+ * and {@code virtual:max} (unthrottled); {@code virtual:v1...} models firmware that
+ * only speaks protocol 1. A {@code #tag} suffix (e.g. {@code virtual:max#2}) is
+ * ignored, it only tells several virtual devices apart.
+ */
+public class SimulatedHardwareController extends SerialHardwareController {
+    public static final String PREFIX = "virtual";
+
+    private final VirtualArduino device;
+
+    public SimulatedHardwareController(String name) {
+        super(name);
+        device = parse(name);
+    }
+
+    public SimulatedHardwareController(VirtualArduino device) {
+        super(PREFIX);
+        this.device = device;
+    }
+
+    public static boolean isVirtual(String name) {
+        name = untagged(name);
+        return name.equals(PREFIX) || name.startsWith(PREFIX + ":");
+    }
+
+    private static String untagged(String name) {
+        int tag = name.indexOf('#');
+        return tag >= 0 ? name.substring(0, tag) : name;
+    }
+
+    private static VirtualArduino parse(String name) {
+        if (!isVirtual(name)) throw new IllegalArgumentException("Not a virtual device: " + name);
+        name = untagged(name);
+        String options = name.length() > PREFIX.length() ? name.substring(PREFIX.length() + 1) : "";
+        int protocol = 2;
+        if (options.startsWith("v1")) {
+            protocol = 1;
+            options = options.substring(2);
+            if (options.startsWith(":")) options = options.substring(1);
+        }
+        if (options.isEmpty()) return new VirtualArduino(VirtualArduino.Speed.REALTIME, 1, protocol);
+        if (options.equals("max")) return new VirtualArduino(VirtualArduino.Speed.UNTHROTTLED, 1, protocol);
+        if (options.startsWith("x")) {
+            try {
+                return new VirtualArduino(VirtualArduino.Speed.ACCELERATED, Double.parseDouble(options.substring(1)), protocol);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        throw new IllegalArgumentException("Invalid virtual device options: " + name);
+    }
+
+    public VirtualArduino getDevice() {
+        return device;
+    }
+
+    @Override
+    protected Transport create_transport(String devname) {
+        return new VirtualTransport(device);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a streaming session, readable directly or through JMX.
+ * <p>
+ * The time between a frame request from the device and the frame being written
+ * is recorded in a {@link LatencyHistogram}. Requests are matched to frames in
+ * arrival order through a small single producer/single consumer ring, so the
+ * reader and writer threads never block each other. A request that finds the
+ * ring full is counted as dropped and its frame is skipped, so the ones after it
+ * still meet their own frames. A second histogram holds
+ * the time from a command being queued to it being written to the device; it
+ * covers the whole connection and is not cleared on reset.
+ */
+public class StreamMetrics implements StreamMetricsMBean {
+    private static final int PENDING_REQUESTS = 64;
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder underruns = new LongAdder();
+    private final LongAdder unknownBytes = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram commandLatency = new LatencyHistogram();
+
+    private final LongAdder droppedRequests = new LongAdder();
+    private final long[] requestTimes = new long[PENDING_REQUESTS];
+    // number of the request each slot holds, a dropped one leaves its slot stale
+    private final long[] requestNumbers = new long[PENDING_REQUESTS];
+    // numbers of the next request to answer and of the next to arrive
+    private final AtomicLong requestHead = new AtomicLong();
+    private final AtomicLong requestTail = new AtomicLong();
+
+    private volatile long startNanos = System.nanoTime();
+    private volatile long lastFrameNanos;
+
+    private ObjectName objectName;
+
+    /**
+     * Called by the reader when the device asks for a frame.
+     */
+    public void frameRequested() {
+        long tail = requestTail.get();
+        if (tail - requestHead.get() >= PENDING_REQUESTS) {
+            droppedRequests.increment();
+        } else {
+            int slot = (int) (tail % PENDING_REQUESTS);
+            requestTimes[slot] = System.nanoTime();
+            requestNumbers[slot] = tail;
+        }
+        requestTail.lazySet(tail + 1);
+    }
+
+    /**
+     * Called by the writer once a data frame of the given size has been written.
+     */
+    public void frameSent(int bytes) {
+        long now = System.nanoTime();
+        framesSent.increment();
+        bytesSent.add(bytes);
+        lastFrameNanos = now;
+
+        long head = requestHead.get();
+        if (head < requestTail.get()) {
+            int slot = (int) (head % PENDING_REQUESTS);
+            if (requestNumbers[slot] == head) latency.record(now - requestTimes[slot]);
+            requestHead.lazySet(head + 1);
+        }
+    }
+
+    /**
+     * Called by the writer when playback starts: requests still pending will not get a frame.
+     */
+    public void clearRequests() {
+        requestHead.lazySet(requestTail.get());
+    }
+
+    /**
+     * Called by the writer once a command queued the given nanoseconds ago has been written.
+     */
+    public void commandSent(long queuedNanos) {
+        commandLatency.record(queuedNanos);
+    }
+
+    public void underrun() {
+        underruns.increment();
+    }
+
+    public void unknownByte() {
+        unknownBytes.increment();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public LatencyHistogram getCommandLatency() {
+        return commandLatency;
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getUnderruns() {
+        return underruns.sum();
+    }
+
+    @Override
+    public long getUnknownBytes() {
+        return unknownBytes.sum();
+    }
+
+    @Override
+    public long getDroppedRequests() {
+        return droppedRequests.sum();
+    }
+
+    /**
+     * Bytes per second from the last reset to the last frame sent.
+     */
+    @Override
+    public double getThroughput() {
+        long elapsed = lastFrameNanos - startNanos;
+        if (elapsed <= 0) return 0;
+        return bytesSent.sum() * 1e9 / elapsed;
+    }
+
+    @Override
+    public long getLatencyCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latency.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return latency.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return latency.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getCommandCount() {
+        return commandLatency.getCount();
+    }
+
+    @Override
+    public double getCommandLatencyP50Micros() {
+        return commandLatency.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getCommandLatencyMaxMicros() {
+        return commandLatency.getMax() / 1000.0;
+    }
+
+    /**
+     * Starts a new measurement, called when playback starts; safe from any thread.
+     */
+    @Override
+    public void reset() {
+        framesSent.reset();
+        bytesSent.reset();
+        underruns.reset();
+        unknownBytes.reset();
+        droppedRequests.reset();
+        latency.reset();
+        startNanos = System.nanoTime();
+        lastFrameNanos = startNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames, %d bytes, %.0f B/s, %d underruns, %d unknown bytes, %d dropped requests, latency p50 %.0f us p99 %.0f us max %.0f us, commands p50 %.0f us max %.0f us",
+                getFramesSent(), getBytesSent(), getThroughput(), getUnderruns(), getUnknownBytes(), getDroppedRequests(),
+                getLatencyP50Micros(), getLatencyP99Micros(), getLatencyMaxMicros(),
+                getCommandLatencyP50Micros(), getCommandLatencyMaxMicros());
+    }
+
+    void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("it.nicofossa:type=StreamMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (Exception e) {
+            Log.write("Could not register metrics: " + e);
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception ignored) {
+        }
+        objectName = null;
+    }
+}
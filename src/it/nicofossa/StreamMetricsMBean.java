@@ -0,0 +1,52 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+/**
+ * JMX view of {@link StreamMetrics}.
+ */
+public interface StreamMetricsMBean {
+    long getFramesSent();
+
+    long getBytesSent();
+
+    long getUnderruns();
+
+    long getUnknownBytes();
+
+    long getDroppedRequests();
+
+    double getThroughput();
+
+    long getLatencyCount();
+
+    double getLatencyMeanMicros();
+
+    double getLatencyP50Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyMaxMicros();
+
+    long getCommandCount();
+
+    double getCommandLatencyP50Micros();
+
+    double getCommandLatencyMaxMicros();
+
+    void reset();
+}
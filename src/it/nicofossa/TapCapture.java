@@ -0,0 +1,179 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the pulse stream sent by the firmware while recording to a TAP v1 file.
+ * <p>
+ * The firmware sends one byte per pulse (length / 8.12 us), or a zero followed by
+ * the length in microseconds on three bytes, little endian, when it does not fit.
+ * Incoming bytes are parsed in bulk into a small fixed pool of chunks that a
+ * background thread writes to disk, so memory stays the same however long the
+ * recording is. The data length in the header is filled in by {@link #close()}.
+ */
+public class TapCapture {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS = 4;
+
+    private final File file;
+    private final FileOutputStream output;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(CHUNKS);
+    // flipped, so the limit is the length to write
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(CHUNKS);
+    // marks the end of the recording on the full queue
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private final Thread writer;
+    private volatile IOException writeError;
+
+    private boolean closed;
+    private ByteBuffer chunk;
+    private long dataLength;
+    private long pulses;
+
+    // extended pulse being received: bytes still expected and value so far
+    private int extended_remaining;
+    private int extended_value;
+    private int extended_shift;
+
+    public TapCapture(File file) throws IOException {
+        this.file = file;
+        output = new FileOutputStream(file);
+        output.write(TapHeader.create(0));
+
+        for (int i = 0; i < CHUNKS; i++) free.add(ByteBuffer.allocate(CHUNK_SIZE));
+        chunk = free.poll();
+
+        writer = new Thread(this::writeLoop, "uno2tap-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Parses bytes as received from the serial port; what arrives after close is dropped.
+     */
+    public synchronized void write(byte[] buf, int off, int len) throws IOException {
+        if (closed) return;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int b = buf[i] & 0xff;
+            if (extended_remaining > 0) {
+                extended_value |= b << extended_shift;
+                extended_shift += 8;
+                if (--extended_remaining == 0) {
+                    putPulse(Math.round(extended_value * TapeIndex.CLOCK / 1000000.0));
+                }
+            } else if (b == 0) {
+                extended_remaining = 3;
+                extended_value = 0;
+                extended_shift = 0;
+            } else {
+                put(b);
+                pulses++;
+            }
+        }
+    }
+
+    private void putPulse(long cycles) throws IOException {
+        if (cycles < 256 * 8 && cycles >= 8) {
+            put((int) (cycles / 8));
+        } else {
+            cycles = Math.min(cycles, 0xffffff);
+            put(0);
+            put((int) (cycles & 0xff));
+            put((int) ((cycles >> 8) & 0xff));
+            put((int) ((cycles >> 16) & 0xff));
+        }
+        pulses++;
+    }
+
+    private void put(int b) throws IOException {
+        chunk.put((byte) b);
+        dataLength++;
+        if (!chunk.hasRemaining()) flushChunk();
+    }
+
+    private void flushChunk() throws IOException {
+        if (writeError != null) throw writeError;
+        if (chunk.position() == 0) return;
+        chunk.flip();
+        try {
+            full.put(chunk);
+            chunk = free.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while recording", e);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer data = full.take();
+                if (data == END) break;
+                if (writeError == null) {
+                    try {
+                        output.write(data.array(), 0, data.limit());
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+                data.clear();
+                free.put(data);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Writes what is left, waits for the disk and fills in the header.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flushChunk();
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while closing recording", e);
+        } finally {
+            output.close();
+        }
+        if (writeError != null) throw writeError;
+
+        try (RandomAccessFile header = new RandomAccessFile(file, "rw")) {
+            header.seek(0x10);
+            for (int i = 0; i < 4; i++) header.write((int) (dataLength >>> (8 * i)));
+        }
+        Log.write("Recorded " + pulses + " pulses (" + dataLength + " bytes) to " + file.getName());
+    }
+
+    public long getPulses() {
+        return pulses;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 20 byte header of a TAP image and the pulse encoding it implies.
+ * <p>
+ * Versions:
+ * <ul>
+ * <li>0: every byte is a pulse of value * 8 cycles, 0 stands for a long pause</li>
+ * <li>1: 0 is followed by the exact pulse length in cycles on three bytes, little endian</li>
+ * <li>2: like 1, but each value is a half wave (C16 tapes)</li>
+ * </ul>
+ */
+public class TapHeader {
+    public static final int SIZE = 0x14;
+    // length given to a version 0 overflow byte, as most tools do
+    public static final int V0_PAUSE_CYCLES = 20000;
+
+    public static final int PLATFORM_C64 = 0;
+    public static final int PLATFORM_VIC20 = 1;
+    public static final int PLATFORM_C16 = 2;
+
+    public static final int VIDEO_PAL = 0;
+    public static final int VIDEO_NTSC = 1;
+
+    private final String signature;
+    private final int version;
+    private final int platform;
+    private final int video;
+    private final long declaredLength;
+    private final int dataEnd;
+    private final double clock;
+
+    private TapHeader(String signature, int version, int platform, int video, long declaredLength, int dataEnd) {
+        this.signature = signature;
+        this.version = version;
+        this.platform = platform;
+        this.video = video;
+        this.declaredLength = declaredLength;
+        this.dataEnd = dataEnd;
+        this.clock = clockOf(platform, video);
+    }
+
+    /**
+     * Reads and validates the header, throws IllegalArgumentException if this is not a TAP image.
+     */
+    public static TapHeader parse(TapeStorage storage) {
+        if (storage.size() < SIZE) throw new IllegalArgumentException("File too short for a TAP header");
+        byte[] header = new byte[SIZE];
+        storage.get(0, header, 0, SIZE);
+
+        String signature = new String(header, 0, 12, StandardCharsets.US_ASCII);
+        if (!signature.equals("C64-TAPE-RAW") && !signature.equals("C16-TAPE-RAW")) {
+            throw new IllegalArgumentException("Not a TAP file, signature is " + signature.trim());
+        }
+        int version = header[12] & 0xff;
+        if (version > 2) throw new IllegalArgumentException("Unsupported TAP version " + version);
+        int platform = header[13] & 0xff;
+        int video = header[14] & 0xff;
+        long declared = (header[16] & 0xffL) | (header[17] & 0xffL) << 8 | (header[18] & 0xffL) << 16 | (header[19] & 0xffL) << 24;
+
+        int available = storage.size() - SIZE;
+        int dataEnd = storage.size();
+        if (declared != available) {
+            Log.write("TAP header declares " + declared + " bytes of data, file has " + available);
+            // trailing garbage is ignored, a truncated file is played as far as it goes
+            if (declared > 0 && declared < available) dataEnd = (int) (SIZE + declared);
+        }
+        return new TapHeader(signature, version, platform, video, declared, dataEnd);
+    }
+
+    /**
+     * Header of a version 1 C64 PAL image of the given data length.
+     */
+    public static byte[] create(long dataLength) {
+        byte[] header = new byte[SIZE];
+        System.arraycopy("C64-TAPE-RAW".getBytes(StandardCharsets.US_ASCII), 0, header, 0, 12);
+        header[12] = 1;
+        for (int i = 0; i < 4; i++) header[16 + i] = (byte) (dataLength >>> (8 * i));
+        return header;
+    }
+
+    private static double clockOf(int platform, int video) {
+        switch (platform) {
+            case PLATFORM_VIC20:
+                return video == VIDEO_NTSC ? 1022727.0 : 1108405.0;
+            case PLATFORM_C16:
+                return video == VIDEO_NTSC ? 894886.0 : 886724.0;
+            default:
+                return video == VIDEO_NTSC ? 1022727.0 : TapeIndex.CLOCK;
+        }
+    }
+
+    /**
+     * Number of bytes the value starting with the given byte takes.
+     */
+    public int valueLength(int firstByte) {
+        return firstByte == 0 && version > 0 ? 4 : 1;
+    }
+
+    /**
+     * Cycles of a value given its bytes; d1..d3 are only looked at for extended values.
+     */
+    public long valueCycles(int firstByte, int d1, int d2, int d3) {
+        if (firstByte != 0) return firstByte * 8L;
+        if (version == 0) return V0_PAUSE_CYCLES;
+        return (d3 << 16) | (d2 << 8) | d1;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getPlatform() {
+        return platform;
+    }
+
+    public int getVideo() {
+        return video;
+    }
+
+    public long getDeclaredLength() {
+        return declaredLength;
+    }
+
+    public int getDataStart() {
+        return SIZE;
+    }
+
+    public int getDataEnd() {
+        return dataEnd;
+    }
+
+    /**
+     * True if every value is a half wave (version 2).
+     */
+    public boolean isHalfWave() {
+        return version == 2;
+    }
+
+    /**
+     * Clock of the machine the image was made for, in Hz.
+     */
+    public double getClock() {
+        return clock;
+    }
+
+    @Override
+    public String toString() {
+        return signature + " v" + version + ", " + (dataEnd - SIZE) + " bytes of data";
+    }
+}
@@ -16,56 +16,62 @@
   */
 package it.nicofossa;
 
-import java.io.*;
-import java.util.Arrays;
-
-import static java.lang.Math.abs;
+import java.io.File;
+import java.nio.ByteBuffer;
 
+/**
+ * A cassette in a recorder: a position on a shared, read-only {@link TapeImage}.
+ */
 public class Tape {
-    private int tap_size;
-    private int tap_pos;
-    private byte[] tap_buf;
-
-    private OnTapeEventListener onTapeEventListener;
-    private int oldPos;
+    /**
+     * Default backend for new tapes, see {@link MappedTapeStorage}.
+     */
+    public static final boolean MAPPED_BY_DEFAULT = Boolean.getBoolean("uno2tap.mappedTape");
+
+    private final TapeImage image;
+    private final TapeStorage storage;
+    private final TapHeader header;
+    private final TapeIndex index;
+    private final int tap_size;
+    // written by the streaming thread, sampled by the UI once per frame
+    private volatile int tap_pos;
+    private boolean closed;
 
     public Tape(File file) {
-        if (!file.exists()) throw new IllegalArgumentException("File does not exist.");
-        try {
-            read_tap(file);
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Invalid file!", e);
-        }
-        tap_pos = 0x14;
+        this(file, MAPPED_BY_DEFAULT);
+    }
 
-        onTapeEventListener = null;
+    public Tape(File file, boolean mapped) {
+        image = TapeImage.acquire(file, mapped);
+        storage = image.getStorage();
+        header = image.getHeader();
+        index = image.getIndex();
+        tap_size = storage.size();
+        tap_pos = header.getDataStart();
     }
 
 
     public void rewind() {
-        tap_pos = 0x14;
-        updateListener();
+        tap_pos = header.getDataStart();
     }
 
     public void setTime(double time) {
         tap_pos = time2pos(time);
-        if (onTapeEventListener != null) onTapeEventListener.onPosUpdated(tap_pos, tap_size);
     }
 
     public double getTime() {
         return pos2time(tap_pos);
     }
 
-    public void setPos(int pos) {
-        tap_pos = pos;
-        updateListener();
+    /**
+     * Elapsed time from the index checkpoints, cheap enough to call every frame.
+     */
+    public double getElapsedTime() {
+        return index.estimateTime(tap_pos);
     }
 
-    private void updateListener() {
-        if (onTapeEventListener != null && abs(tap_pos - oldPos) > 1000) {
-            onTapeEventListener.onPosUpdated(tap_pos, tap_size);
-            oldPos = tap_pos;
-        }
+    public void setPos(int pos) {
+        tap_pos = pos;
     }
 
     public int getPos() {
@@ -76,83 +82,102 @@ public class Tape {
         return tap_size;
     }
 
+    /**
+     * Offset just past the pulse data, trailing bytes beyond the declared length excluded.
+     */
+    public int getDataEnd() {
+        return header.getDataEnd();
+    }
+
+    public File getFile() {
+        return image.getFile();
+    }
 
-    public void close() {
+    public TapeImage getImage() {
+        return image;
+    }
 
+    public TapHeader getHeader() {
+        return header;
     }
 
-    private void read_tap(File tapfile) throws IOException {
-        tap_size = (int) tapfile.length();
-        tap_buf = new byte[tap_size];
+    public TapeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Pulses decoded into primitive arrays, created on first use.
+     */
+    public PulseArray getPulses() {
+        return image.getPulses();
+    }
 
-        InputStream input = new BufferedInputStream(new FileInputStream(tapfile));
-        int totalBytesRead = 0;
-        while (totalBytesRead < tap_size) {
-            int bytesRemaining = tap_size - totalBytesRead;
-            int bytesRead = input.read(tap_buf, totalBytesRead, bytesRemaining);
-            if (bytesRead > 0) {
-                totalBytesRead = totalBytesRead + bytesRead;
-            }
-        }
-        input.close();
+    /**
+     * Kernal loader blocks on the tape, decoded on first use.
+     */
+    public CbmBlockIndex getBlocks() {
+        return image.getBlocks();
     }
 
 
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        image.release();
+    }
+
     private double pos2time(int pos) {
-        double time = 0.0;
-        int xpos;
-        for (xpos = 0x14; xpos < pos; xpos++) {
-            if (xpos >= tap_size) break;
-            int tap_data = (int) tap_buf[xpos];
-            if (tap_data != 0) {
-                time += (tap_data * 8) / 985248.0;
-            } else {
-                int d1 = tap_buf[xpos + 1];
-                int d2 = tap_buf[xpos + 2];
-                int d3 = tap_buf[xpos + 3];
-                time += ((d3 * 256 * 256) + (d2 * 256) + d1) / 985248.0;
-                xpos += 3;
-            }
-        }
-        return time;
+        return index.pos2time(pos);
     }
 
     // return tap position (including header) for given time
     private int time2pos(double time) {
-        double xtime = 0.0;
-        int xpos;
-        for (xpos = 0x14; xpos < tap_size; xpos++) {
-            if (xtime >= time) break;
-            int tap_data = (int) tap_buf[xpos];
-            if (tap_data != 0) {
-                xtime += (tap_data * 8) / 985248.0;
-            } else {
-                int d1 = tap_buf[xpos + 1];
-                int d2 = tap_buf[xpos + 2];
-                int d3 = tap_buf[xpos + 3];
-                xtime += ((d3 * 256 * 256) + (d2 * 256) + d1) / 985248.0;
-                xpos += 3;
-            }
-        }
-        return xpos;
+        return index.time2pos(time);
+    }
+
+    public double getTotalTime() {
+        return index.getTotalTime();
     }
 
 
     byte[] getNByte(int howMany) {
-        byte[] buffer = Arrays.copyOfRange(tap_buf, tap_pos, tap_pos + howMany);
+        byte[] buffer = new byte[howMany];
+        storage.get(tap_pos, buffer, 0, Math.min(howMany, tap_size - tap_pos));
 
         tap_pos += howMany;
-
-        updateListener();
         return buffer;
     }
 
-    public void setOnTapeEventListener(OnTapeEventListener onTapeEventListener) {
-        this.onTapeEventListener = onTapeEventListener;
+    /**
+     * Copies the next howMany bytes into dst and advances the tape.
+     */
+    void read(ByteBuffer dst, int howMany) {
+        storage.get(tap_pos, dst, howMany);
+
+        tap_pos += howMany;
+    }
+
+    /**
+     * Copies the next howMany bytes into dst at off and advances the tape.
+     */
+    void read(byte[] dst, int off, int howMany) {
+        storage.get(tap_pos, dst, off, howMany);
+
+        tap_pos += howMany;
+    }
+
+    /**
+     * Copies howMany bytes at pos into dst at off, the tape is not moved.
+     */
+    void get(int pos, byte[] dst, int off, int howMany) {
+        storage.get(pos, dst, off, howMany);
     }
 
-    public interface OnTapeEventListener {
-        public void onPosUpdated(int pos, int lenght);
+    /**
+     * Read-only view of the next howMany bytes, the tape is not advanced.
+     */
+    ByteBuffer slice(int howMany) {
+        return storage.slice(tap_pos, Math.min(howMany, tap_size - tap_pos));
     }
 
 }
@@ -0,0 +1,349 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Catalog of the TAP files found under some folders.
+ * <p>
+ * Folders are walked in parallel on the common fork-join pool. Every TAP file is
+ * read once: header, duration and the names of the Kernal loader headers on it
+ * (see {@link CbmDecoder}). Entries are kept in a cache file keyed by path, size
+ * and modification time, so a rescan only reads the files that changed.
+ */
+public class TapeCatalog {
+    private static final int CACHE_MAGIC = 0x54415043;
+    private static final int CACHE_VERSION = 1;
+    // files read by a single task, smaller batches are not worth a fork
+    private static final int FILES_PER_TASK = 8;
+    private static final int READ_WINDOW = 64 * 1024;
+
+    /**
+     * What the catalog knows about a file.
+     */
+    public static final class Entry {
+        public final String path;
+        public final long size;
+        public final long modified;
+        public final int version;
+        public final double duration;
+        public final List<String> names;
+
+        Entry(String path, long size, long modified, int version, double duration, List<String> names) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.version = version;
+            this.duration = duration;
+            this.names = Collections.unmodifiableList(names);
+        }
+
+        public File getFile() {
+            return new File(path);
+        }
+
+        boolean isCurrent(File file) {
+            return file.length() == size && file.lastModified() == modified;
+        }
+
+        @Override
+        public String toString() {
+            int seconds = (int) duration;
+            String name = getFile().getName();
+            String programs = names.isEmpty() ? "" : " " + String.join(", ", names);
+            return String.format("%s [%d:%02d]%s", name, seconds / 60, seconds % 60, programs);
+        }
+    }
+
+    private final File cacheFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Catalog kept in the given file, loaded now if it exists.
+     */
+    public TapeCatalog(File cacheFile) {
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    /**
+     * Default location, ~/.uno2tap/catalog.cache or -Duno2tap.catalog.
+     */
+    public static File defaultCacheFile() {
+        String path = System.getProperty("uno2tap.catalog");
+        if (path != null) return new File(path);
+        return new File(new File(System.getProperty("user.home"), ".uno2tap"), "catalog.cache");
+    }
+
+    /**
+     * Scans the folder and everything below it, then saves the cache.
+     * Entries of files no longer there are dropped.
+     */
+    public void scan(File root) {
+        long start = System.nanoTime();
+        String prefix = root.getAbsolutePath() + File.separator;
+        Map<String, Boolean> seen = new ConcurrentHashMap<>();
+        LongAdder read = new LongAdder();
+        ForkJoinPool.commonPool().invoke(new FolderScan(root, seen, read));
+
+        entries.keySet().removeIf(path -> path.startsWith(prefix) && !seen.containsKey(path));
+        save();
+        Log.write(String.format("Catalog: %d TAP files under %s, %d read, in %d ms",
+                seen.size(), root, read.sum(), (System.nanoTime() - start) / 1000000));
+    }
+
+    private class FolderScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File folder;
+        private final Map<String, Boolean> seen;
+        private final LongAdder read;
+
+        FolderScan(File folder, Map<String, Boolean> seen, LongAdder read) {
+            this.folder = folder;
+            this.seen = seen;
+            this.read = read;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = folder.listFiles();
+            if (children == null) return;
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    tasks.add(new FolderScan(child, seen, read));
+                } else if (child.getName().toLowerCase(Locale.ROOT).endsWith(".tap")) {
+                    files.add(child);
+                    if (files.size() == FILES_PER_TASK) {
+                        tasks.add(new FileScan(files, seen, read));
+                        files = new ArrayList<>();
+                    }
+                }
+            }
+            if (!files.isEmpty()) tasks.add(new FileScan(files, seen, read));
+            invokeAll(tasks);
+        }
+    }
+
+    private class FileScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final Map<String, Boolean> seen;
+        private final LongAdder read;
+
+        FileScan(List<File> files, Map<String, Boolean> seen, LongAdder read) {
+            this.files = files;
+            this.seen = seen;
+            this.read = read;
+        }
+
+        @Override
+        protected void compute() {
+            for (File file : files) {
+                String path = file.getAbsolutePath();
+                seen.put(path, Boolean.TRUE);
+                Entry cached = entries.get(path);
+                if (cached != null && cached.isCurrent(file)) continue;
+                Entry entry = read(file);
+                read.increment();
+                if (entry != null) entries.put(path, entry);
+                else entries.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Reads one file, null if it cannot be read. Files that are not TAP images get
+     * an entry too, with version -1, so they are not read again. The file is mapped
+     * and read through a small window, scans running in parallel don't keep copies.
+     */
+    static Entry read(File file) {
+        long size = file.length();
+        long modified = file.lastModified();
+        TapeStorage storage;
+        try {
+            storage = TapeStorage.open(file, true);
+        } catch (IOException e) {
+            Log.write("Catalog: could not read " + file + ": " + e.getMessage());
+            return null;
+        }
+        try {
+            TapHeader header = TapHeader.parse(storage);
+            int start = header.getDataStart();
+            int end = header.getDataEnd();
+            StorageWindow data = new StorageWindow(storage, end);
+
+            List<String> names = new ArrayList<>();
+            CbmDecoder decoder = new CbmDecoder(block -> {
+                if (block.isHeader() && !block.isRepeat() && block.getType() != CbmBlock.TYPE_END_OF_TAPE) {
+                    names.add(block.getName());
+                }
+            });
+            long total = 0;
+            long wave = 0;
+            boolean second_half = false;
+            int pos = start;
+            int wave_start = start;
+            while (pos < end) {
+                int b = data.at(pos);
+                long cycles = header.valueLength(b) == 1 ? header.valueCycles(b, 0, 0, 0)
+                        : header.valueCycles(b, data.at(pos + 1), data.at(pos + 2), data.at(pos + 3));
+                if (!second_half) wave_start = pos;
+                pos += header.valueLength(b);
+                total += cycles;
+                if (header.isHalfWave()) {
+                    wave += cycles;
+                    second_half = !second_half;
+                    if (second_half) continue;
+                    cycles = wave;
+                    wave = 0;
+                }
+                decoder.pulse(cycles, wave_start);
+            }
+            decoder.finish(end);
+            return new Entry(file.getAbsolutePath(), size, modified, header.getVersion(), total / header.getClock(), names);
+        } catch (IllegalArgumentException e) {
+            Log.write("Catalog: skipping " + file + ": " + e.getMessage());
+            return new Entry(file.getAbsolutePath(), size, modified, -1, 0, new ArrayList<>());
+        } finally {
+            storage.close();
+        }
+    }
+
+    // sequential reads of a storage through a small buffer, bytes past end read as 0
+    private static final class StorageWindow {
+        private final TapeStorage storage;
+        private final int end;
+        private final byte[] buf = new byte[READ_WINDOW];
+        private int buf_start;
+        private int buf_end;
+
+        StorageWindow(TapeStorage storage, int end) {
+            this.storage = storage;
+            this.end = end;
+        }
+
+        int at(int pos) {
+            if (pos >= end) return 0;
+            if (pos < buf_start || pos >= buf_end) {
+                buf_start = pos;
+                buf_end = Math.min(end, pos + buf.length);
+                storage.get(buf_start, buf, 0, buf_end - buf_start);
+            }
+            return buf[pos - buf_start] & 0xff;
+        }
+    }
+
+    /**
+     * Entries whose file name or program names contain the text, ignoring case,
+     * sorted by path. An empty text matches everything.
+     */
+    public List<Entry> search(String text) {
+        String needle = text.trim().toLowerCase(Locale.ROOT);
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.version >= 0 && matches(entry, needle)) result.add(entry);
+        }
+        result.sort((a, b) -> a.path.compareToIgnoreCase(b.path));
+        return result;
+    }
+
+    private static boolean matches(Entry entry, String needle) {
+        if (needle.isEmpty() || entry.getFile().getName().toLowerCase(Locale.ROOT).contains(needle)) return true;
+        for (String name : entry.names) {
+            if (name.toLowerCase(Locale.ROOT).contains(needle)) return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void load() {
+        if (!cacheFile.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                Log.write("Catalog: ignoring " + cacheFile + ", unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int version = in.readByte();
+                double duration = in.readDouble();
+                int name_count = in.readUnsignedShort();
+                List<String> names = new ArrayList<>(name_count);
+                for (int n = 0; n < name_count; n++) names.add(in.readUTF());
+                entries.put(path, new Entry(path, size, modified, version, duration, names));
+            }
+        } catch (IOException e) {
+            Log.write("Catalog: could not read " + cacheFile + ": " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            List<Entry> snapshot = new ArrayList<>(entries.values());
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeByte(entry.version);
+                out.writeDouble(entry.duration);
+                out.writeShort(entry.names.size());
+                for (String name : entry.names) out.writeUTF(name);
+            }
+        } catch (IOException e) {
+            Log.write("Catalog: could not write " + cacheFile + ": " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if (!temp.renameTo(cacheFile)) Log.write("Catalog: could not replace " + cacheFile);
+        }
+    }
+}
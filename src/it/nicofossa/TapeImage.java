@@ -0,0 +1,144 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The read-only part of a tape: storage, header and the indexes built over them.
+ * <p>
+ * Images are shared: every {@link Tape} opened on the same file (with the same
+ * backend, while the file is unchanged) uses one image and only keeps its own
+ * position. The image is closed when the last tape using it is.
+ */
+public class TapeImage {
+    private static final Map<String, TapeImage> open = new HashMap<>();
+
+    private final String key;
+    private final File file;
+    private final long modified;
+    private final long length;
+    private final TapeStorage storage;
+    private final TapHeader header;
+    private final TapeIndex index;
+    private PulseArray pulses;
+    private CbmBlockIndex blocks;
+    // tapes using this image, guarded by the open map
+    private int users;
+
+    private TapeImage(String key, File file, boolean mapped) {
+        this.key = key;
+        this.file = file;
+        this.modified = file.lastModified();
+        this.length = file.length();
+        try {
+            storage = TapeStorage.open(file, mapped);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid file!", e);
+        }
+        try {
+            header = TapHeader.parse(storage);
+        } catch (IllegalArgumentException e) {
+            storage.close();
+            throw e;
+        }
+        if (header.getVersion() != 1) {
+            Log.write("Warning: " + header + ", the firmware only plays version 1 pulses");
+        }
+        index = new TapeIndex(storage, header);
+    }
+
+    /**
+     * The image of the file, opened if no tape is using it yet. Each call must be
+     * matched by a {@link #release()}.
+     */
+    static TapeImage acquire(File file, boolean mapped) {
+        if (!file.exists()) throw new IllegalArgumentException("File does not exist.");
+        String key;
+        try {
+            key = file.getCanonicalPath() + (mapped ? "#mapped" : "#heap");
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid file!", e);
+        }
+        synchronized (open) {
+            TapeImage image = open.get(key);
+            if (image == null || image.modified != file.lastModified() || image.length != file.length()) {
+                // a changed file gets a new image, tapes still on the old one keep it
+                image = new TapeImage(key, file, mapped);
+                open.put(key, image);
+            }
+            image.users++;
+            return image;
+        }
+    }
+
+    void release() {
+        synchronized (open) {
+            if (--users > 0) return;
+            if (open.get(key) == this) open.remove(key);
+        }
+        storage.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    TapeStorage getStorage() {
+        return storage;
+    }
+
+    public TapHeader getHeader() {
+        return header;
+    }
+
+    public TapeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Pulses decoded into primitive arrays, created on first use.
+     */
+    public synchronized PulseArray getPulses() {
+        if (pulses == null) pulses = new PulseArray(storage, header, index);
+        return pulses;
+    }
+
+    /**
+     * Kernal loader blocks on the tape, decoded on first use.
+     */
+    public synchronized CbmBlockIndex getBlocks() {
+        if (blocks == null) {
+            long start = System.nanoTime();
+            blocks = new CbmBlockIndex(getPulses(), header);
+            Log.write("Found " + blocks + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        return blocks;
+    }
+
+    /**
+     * Number of tapes open on this image.
+     */
+    public int getUsers() {
+        synchronized (open) {
+            return users;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.util.Arrays;
+
+/**
+ * Sparse cumulative-cycle index of a TAP image.
+ * <p>
+ * Every {@link #CHECKPOINT_INTERVAL} bytes the file offset of the next pulse, the
+ * total number of clock cycles and the number of TAP values before it are stored,
+ * so a time/position lookup is a binary search followed by a walk of at most one
+ * interval. Values are decoded as the {@link TapHeader} version says.
+ */
+public class TapeIndex {
+    public static final double CLOCK = 985248.0;
+    private static final int CHECKPOINT_INTERVAL = 4096;
+
+    private final TapeStorage storage;
+    private final TapHeader header;
+    private final int start;
+    private final int end;
+
+    // bytes of the interval being walked, read in one go from the storage
+    private final byte[] walk_buf = new byte[CHECKPOINT_INTERVAL + 8];
+    private int walk_start;
+    private int walk_end;
+
+    private int[] offsets;
+    private long[] cycles;
+    private int[] values;
+    private int count;
+    private long totalCycles;
+    private int totalValues;
+
+    public TapeIndex(TapeStorage storage, TapHeader header) {
+        this.storage = storage;
+        this.header = header;
+        this.start = header.getDataStart();
+        this.end = header.getDataEnd();
+        build();
+    }
+
+    private void build() {
+        int capacity = (end - start) / CHECKPOINT_INTERVAL + 2;
+        offsets = new int[capacity];
+        cycles = new long[capacity];
+        values = new int[capacity];
+        count = 0;
+        if (storage instanceof TapeTimeline) {
+            buildFromTimeline((TapeTimeline) storage);
+            return;
+        }
+
+        long total = 0;
+        int value = 0;
+        int next_checkpoint = start;
+        int xpos = start;
+        while (xpos < end) {
+            if (xpos >= next_checkpoint) {
+                offsets[count] = xpos;
+                cycles[count] = total;
+                values[count] = value;
+                count++;
+                next_checkpoint = xpos + CHECKPOINT_INTERVAL;
+            }
+            total += pulseCycles(xpos);
+            xpos += pulseLength(xpos);
+            value++;
+        }
+        totalCycles = total;
+        totalValues = value;
+    }
+
+    // same checkpoints, asked for instead of walked
+    private void buildFromTimeline(TapeTimeline timeline) {
+        int xpos = start;
+        while (xpos < end) {
+            offsets[count] = xpos;
+            cycles[count] = timeline.cyclesBefore(xpos);
+            values[count] = timeline.valuesBefore(xpos);
+            count++;
+            int next = xpos + CHECKPOINT_INTERVAL;
+            xpos = next < end ? timeline.valueStart(next) : end;
+        }
+        totalCycles = timeline.cyclesBefore(end);
+        totalValues = timeline.valuesBefore(end);
+    }
+
+    // cycles of the pulse starting at pos; a truncated extended pulse counts the bytes present
+    private long pulseCycles(int pos) {
+        int tap_data = byteAt(pos);
+        if (header.valueLength(tap_data) == 1) return header.valueCycles(tap_data, 0, 0, 0);
+        int d1 = pos + 1 < end ? byteAt(pos + 1) : 0;
+        int d2 = pos + 2 < end ? byteAt(pos + 2) : 0;
+        int d3 = pos + 3 < end ? byteAt(pos + 3) : 0;
+        return header.valueCycles(tap_data, d1, d2, d3);
+    }
+
+    private int pulseLength(int pos) {
+        return header.valueLength(byteAt(pos));
+    }
+
+    private int byteAt(int pos) {
+        if (pos < walk_start || pos >= walk_end) {
+            walk_start = pos;
+            walk_end = Math.min(end, pos + walk_buf.length);
+            storage.get(walk_start, walk_buf, 0, walk_end - walk_start);
+        }
+        return walk_buf[pos - walk_start] & 0xff;
+    }
+
+    // index of the last checkpoint at or before pos
+    private int checkpointBefore(int pos) {
+        int i = Arrays.binarySearch(offsets, 0, count, pos);
+        if (i < 0) i = -i - 2;
+        return i;
+    }
+
+    /**
+     * Total cycles of all pulses starting before pos.
+     */
+    public synchronized long pos2cycles(int pos) {
+        if (count == 0 || pos <= start) return 0;
+        if (pos >= end) return totalCycles;
+        int i = checkpointBefore(pos);
+        int xpos = offsets[i];
+        long total = cycles[i];
+        while (xpos < pos) {
+            total += pulseCycles(xpos);
+            xpos += pulseLength(xpos);
+        }
+        return total;
+    }
+
+    /**
+     * Offset just after the first pulse that brings the elapsed cycles to target,
+     * or the end of data if the tape is shorter.
+     */
+    public synchronized int cycles2pos(long target) {
+        if (count == 0 || target <= 0) return start;
+        if (target > totalCycles) return end;
+        // last checkpoint still strictly below target
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (cycles[mid] < target) lo = mid;
+            else hi = mid - 1;
+        }
+        int xpos = offsets[lo];
+        long total = cycles[lo];
+        while (xpos < end && total < target) {
+            total += pulseCycles(xpos);
+            xpos += pulseLength(xpos);
+        }
+        return Math.min(xpos, end);
+    }
+
+    /**
+     * File offset of the TAP value with the given number, counting from the data start.
+     */
+    public synchronized int value2pos(int value) {
+        if (count == 0 || value <= 0) return start;
+        if (value >= totalValues) return end;
+        int i = Arrays.binarySearch(values, 0, count, value);
+        if (i < 0) i = -i - 2;
+        int xpos = offsets[i];
+        for (int n = values[i]; n < value; n++) xpos += pulseLength(xpos);
+        return xpos;
+    }
+
+    /**
+     * Seconds of tape before pos, interpolated between the two checkpoints around it.
+     * Needs no storage access or locking, meant for display while playing.
+     */
+    public double estimateTime(int pos) {
+        if (count == 0 || pos <= start) return 0;
+        if (pos >= end) return getTotalTime();
+        int i = checkpointBefore(pos);
+        long next_cycles = i + 1 < count ? cycles[i + 1] : totalCycles;
+        int next_offset = i + 1 < count ? offsets[i + 1] : end;
+        double elapsed = cycles[i] + (double) (next_cycles - cycles[i]) * (pos - offsets[i]) / Math.max(1, next_offset - offsets[i]);
+        return elapsed / header.getClock();
+    }
+
+    public double pos2time(int pos) {
+        return pos2cycles(pos) / header.getClock();
+    }
+
+    public int time2pos(double time) {
+        return cycles2pos((long) Math.ceil(time * header.getClock()));
+    }
+
+    /**
+     * Number of TAP values, half waves for version 2 images.
+     */
+    public int getValueCount() {
+        return totalValues;
+    }
+
+    public long getTotalCycles() {
+        return totalCycles;
+    }
+
+    public double getTotalTime() {
+        return totalCycles / header.getClock();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the raw bytes of a TAP image, header included.
+ */
+public interface TapeStorage {
+    int size();
+
+    /**
+     * Unsigned byte at pos.
+     */
+    int get(int pos);
+
+    void get(int pos, byte[] dst, int off, int len);
+
+    /**
+     * Copies len bytes starting at pos into dst, advancing its position.
+     */
+    void get(int pos, ByteBuffer dst, int len);
+
+    /**
+     * Read-only view of len bytes starting at pos, without copying when possible.
+     */
+    ByteBuffer slice(int pos, int len);
+
+    void close();
+
+    /**
+     * Storage for the file: a sampled recording is converted on the fly, see
+     * {@link WavTapeStorage}, programs are synthesized, see {@link PrgTapeStorage};
+     * TAP images are mapped or loaded into the heap.
+     */
+    static TapeStorage open(File file, boolean mapped) throws IOException {
+        if (WavTapeStorage.isWav(file)) return new WavTapeStorage(file);
+        if (PrgTapeStorage.isProgram(file)) return new PrgTapeStorage(file);
+        if (mapped) return new MappedTapeStorage(file);
+        return new HeapTapeStorage(file);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+/**
+ * Implemented by storages that know the timing of their pulses without reading
+ * them, so {@link TapeIndex} can place its checkpoints directly instead of
+ * walking the whole image.
+ */
+public interface TapeTimeline {
+    /**
+     * Offset of the first byte of the value that pos is in.
+     */
+    int valueStart(int pos);
+
+    /**
+     * Cycles of all pulses before the value starting at pos.
+     */
+    long cyclesBefore(int pos);
+
+    /**
+     * Number of values before the value starting at pos.
+     */
+    int valuesBefore(int pos);
+}
@@ -0,0 +1,625 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Checks whether two tapes, say a dump and a reference, would load the same,
+ * comparing pulse lengths within a tolerance instead of bytes.
+ * <p>
+ * Both tapes are read once, front to back, and their Kernal blocks decoded on
+ * the way with a {@link CbmDecoder} each; the blocks found on both anchor the two
+ * pulse streams. As soon as a new pair of blocks is found, the pulses since the
+ * last one are compared as a segment, cut into chunks of
+ * {@link PulseArray#CHUNK_SIZE} that are compared in parallel at a fixed distance.
+ * Where a chunk diverges, the rest of its segment is walked one pulse at a time,
+ * finding the way back in step after a dropped, spurious or split pulse. Leaders
+ * and pauses of different length are normal between two recordings and don't
+ * count as divergences.
+ * <p>
+ * Usage: {@code TapeVerifier REFERENCE CANDIDATE [TOLERANCE]}, exits with 1 if
+ * the tapes differ.
+ */
+public class TapeVerifier {
+    public static final int DEFAULT_TOLERANCE = Integer.getInteger("uno2tap.verify.tolerance", 48);
+
+    // longer pulses are pauses, a loader doesn't care how long they are
+    private static final int PAUSE_CYCLES = 20000;
+    // equal pulses before a difference that make it a leader of another length
+    private static final int MIN_RUN = 32;
+    // how far a lost or spurious pulse is looked for, and how many must match after it
+    private static final int RESYNC_WINDOW = 16;
+    private static final int RESYNC_CONFIRM = 8;
+    // pulses read from one tape before looking at the other
+    private static final int READ_PULSES = 4096;
+
+    private final Tape reference;
+    private final Tape candidate;
+    private final int tolerance;
+
+    private PulseArray a;
+    private PulseArray b;
+    // reference blocks decoded so far, with their pulse ranges, and those found to differ
+    private final List<CbmBlock> blocks = new ArrayList<>();
+    private int[] block_start = new int[16];
+    private int[] block_end = new int[16];
+    private final BitSet mismatched = new BitSet();
+    // reference blocks waiting for a twin, and candidate blocks not paired or passed yet
+    private final ArrayDeque<Integer> unpaired = new ArrayDeque<>();
+    private final List<CbmBlock> others = new ArrayList<>();
+    // pulse pair of the last anchor, null before the first
+    private int[] anchor;
+    private Report report;
+
+    public TapeVerifier(Tape reference, Tape candidate) {
+        this(reference, candidate, DEFAULT_TOLERANCE);
+    }
+
+    public TapeVerifier(Tape reference, Tape candidate, int tolerance) {
+        this.reference = reference;
+        this.candidate = candidate;
+        this.tolerance = tolerance;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: TapeVerifier REFERENCE CANDIDATE [TOLERANCE]");
+            System.exit(2);
+        }
+        int tolerance = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TOLERANCE;
+        Tape reference = new Tape(new File(args[0]));
+        Tape candidate = new Tape(new File(args[1]));
+        Report report = new TapeVerifier(reference, candidate, tolerance).verify();
+        System.out.println(report);
+        reference.close();
+        candidate.close();
+        System.exit(report.isEquivalent() ? 0 : 1);
+    }
+
+    /**
+     * Compares the tapes, once; a verifier is not reused.
+     */
+    public synchronized Report verify() {
+        if (report != null) return report;
+        long started = System.nanoTime();
+        a = reference.getPulses();
+        b = candidate.getPulses();
+        report = new Report(tolerance);
+        CbmDecoder reference_blocks = new CbmDecoder(this::referenceBlock);
+        CbmDecoder candidate_blocks = new CbmDecoder(others::add);
+
+        // the side behind in time reads on, so blocks turn up on both at about the same pace
+        int i = 0;
+        int j = 0;
+        long time_a = 0;
+        long time_b = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j >= b.size() || i < a.size() && time_a <= time_b) {
+                for (int to = Math.min(a.size(), i + READ_PULSES); i < to; i++) {
+                    int cycles = a.get(i);
+                    time_a += cycles;
+                    reference_blocks.pulse(cycles, a.getOffset(i));
+                }
+                if (i == a.size()) reference_blocks.finish(reference.getDataEnd());
+            } else {
+                for (int to = Math.min(b.size(), j + READ_PULSES); j < to; j++) {
+                    int cycles = b.get(j);
+                    time_b += cycles;
+                    candidate_blocks.pulse(cycles, b.getOffset(j));
+                }
+                if (j == b.size()) candidate_blocks.finish(candidate.getDataEnd());
+            }
+            pair(j == b.size());
+        }
+        if (anchor == null) {
+            compare(new Segment(0, 0, a.size(), b.size()));
+        } else {
+            compare(new Segment(anchor[0], anchor[1], a.size(), b.size()));
+        }
+
+        for (int n = mismatched.nextSetBit(0); n >= 0; n = mismatched.nextSetBit(n + 1)) report.blocks.add(blocks.get(n));
+        report.elapsed = (System.nanoTime() - started) / 1e9;
+        return report;
+    }
+
+    private void referenceBlock(CbmBlock block) {
+        int n = blocks.size();
+        if (n == block_start.length) {
+            block_start = Arrays.copyOf(block_start, n * 2);
+            block_end = Arrays.copyOf(block_end, n * 2);
+        }
+        block_start[n] = a.indexOf(block.getStartOffset());
+        block_end[n] = a.indexOf(block.getEndOffset());
+        blocks.add(block);
+        unpaired.add(n);
+    }
+
+    /**
+     * Pairs the reference blocks, in order, with the next candidate block of the
+     * same content. A reference block whose twin cannot come any more, because the
+     * candidate ended or holds the twin of a later block, is a mismatch.
+     */
+    private void pair(boolean candidate_done) {
+        while (!unpaired.isEmpty()) {
+            int n = unpaired.peek();
+            int found = twin(blocks.get(n));
+            if (found >= 0) {
+                unpaired.poll();
+                CbmBlock other = others.get(found);
+                others.subList(0, found + 1).clear();
+                anchor(block_start[n], b.indexOf(other.getStartOffset()));
+                continue;
+            }
+            boolean passed = candidate_done;
+            for (int later : unpaired) {
+                if (later != n && twin(blocks.get(later)) >= 0) passed = true;
+            }
+            if (!passed) return;
+            unpaired.poll();
+            mismatched.set(n);
+        }
+    }
+
+    private int twin(CbmBlock block) {
+        for (int q = 0; q < others.size(); q++) {
+            CbmBlock other = others.get(q);
+            if (other.isRepeat() == block.isRepeat() && other.isChecksumOk() == block.isChecksumOk()
+                    && Arrays.equals(other.getPayload(), block.getPayload())) {
+                return q;
+            }
+        }
+        return -1;
+    }
+
+    // the segment up to a new anchor is complete
+    private void anchor(int i, int j) {
+        if (anchor == null) {
+            // before the first block only as much as both have, ending together
+            int lead = Math.min(i, j);
+            report.leading_reference = i - lead;
+            report.leading_candidate = j - lead;
+            compare(new Segment(i - lead, j - lead, i, j));
+        } else {
+            compare(new Segment(anchor[0], anchor[1], i, j));
+        }
+        anchor = new int[]{i, j};
+    }
+
+    // chunks of the segment in parallel at its distance, then a walk from the first divergence
+    private void compare(Segment segment) {
+        int chunks = (segment.a_end - segment.a_start + PulseArray.CHUNK_SIZE - 1) / PulseArray.CHUNK_SIZE;
+        Stats[] fast = new Stats[chunks];
+        IntStream.range(0, chunks).parallel().forEach(k -> fast[k] = compareChunk(segment, segment.a_start + k * PulseArray.CHUNK_SIZE));
+        for (Stats chunk : fast) {
+            if (chunk == null) break;
+            segment.stats.merge(chunk);
+            if (chunk.diverged >= 0) {
+                segment.resume = chunk.diverged;
+                break;
+            }
+        }
+        // all matched, but the candidate may go on
+        if (segment.resume < 0 && segment.b_end - segment.b_start != segment.a_end - segment.a_start) {
+            segment.resume = Math.min(segment.a_end, segment.a_start + segment.b_end - segment.b_start);
+        }
+        walk(segment);
+
+        report.stats.merge(segment.stats);
+        if (report.first == null) report.first = segment.first;
+        report.divergences += segment.divergences;
+        report.extra += segment.extra;
+        report.missing += segment.missing;
+        report.run_pulses += segment.run_pulses;
+    }
+
+    private boolean matches(int x, int y) {
+        if (x >= PAUSE_CYCLES && y >= PAUSE_CYCLES) return true;
+        return Math.abs(x - y) <= tolerance;
+    }
+
+    // one chunk at the segment distance, up to the first pulse that differs
+    private Stats compareChunk(Segment segment, int from) {
+        if (from > segment.dirty.get()) return null;
+        Stats stats = new Stats();
+        int to = Math.min(segment.a_end, from + PulseArray.CHUNK_SIZE);
+        int delta = segment.b_start - segment.a_start;
+        for (int i = from; i < to; i++) {
+            int j = i + delta;
+            if (j >= segment.b_end || !matches(a.get(i), b.get(j))) {
+                stats.diverged = i;
+                segment.dirty.accumulateAndGet(i, Math::min);
+                return stats;
+            }
+            stats.add(a.get(i), b.get(j));
+        }
+        return stats;
+    }
+
+    // the rest of a segment after its first divergence
+    private void walk(Segment segment) {
+        if (segment.resume < 0) return;
+        int i = segment.resume;
+        int j = i + segment.b_start - segment.a_start;
+        while (i < segment.a_end && j < segment.b_end) {
+            int x = a.get(i);
+            int y = b.get(j);
+            if (matches(x, y)) {
+                segment.stats.add(x, y);
+                i++;
+                j++;
+                continue;
+            }
+            // one leader goes on after the other ended
+            if (inRun(a, i, segment.a_start) && matches(y, a.get(i - 1)) && !matches(x, a.get(i - 1))) {
+                j = skipRun(b, j, segment.b_end, a.get(i - 1), x, segment);
+                continue;
+            }
+            if (inRun(b, j, segment.b_start) && matches(x, b.get(j - 1)) && !matches(y, b.get(j - 1))) {
+                i = skipRun(a, i, segment.a_end, b.get(j - 1), y, segment);
+                continue;
+            }
+            if (confirm(segment, i + 1, j + 1)) {
+                segment.diverge(Kind.DIFFERENT, i, j, x, y);
+                i++;
+                j++;
+                continue;
+            }
+            // a pulse split in two, or two merged into one
+            if (j + 1 < segment.b_end && matches(x, y + b.get(j + 1)) && confirm(segment, i + 1, j + 2)) {
+                segment.diverge(Kind.SPLIT, i, j, x, y);
+                i++;
+                j += 2;
+                continue;
+            }
+            if (i + 1 < segment.a_end && matches(x + a.get(i + 1), y) && confirm(segment, i + 2, j + 1)) {
+                segment.diverge(Kind.MERGED, i, j, x, y);
+                i += 2;
+                j++;
+                continue;
+            }
+            int skip = 0;
+            for (int n = 1; n <= RESYNC_WINDOW && skip == 0; n++) {
+                if (confirm(segment, i, j + n)) skip = n;
+                else if (confirm(segment, i + n, j)) skip = -n;
+            }
+            if (skip > 0) {
+                segment.diverge(Kind.EXTRA, i, j, x, y);
+                segment.extra += skip - 1;
+                j += skip;
+            } else if (skip < 0) {
+                segment.diverge(Kind.MISSING, i, j, x, y);
+                segment.missing += -skip - 1;
+                i += -skip;
+            } else {
+                segment.diverge(Kind.DIFFERENT, i, j, x, y);
+                i++;
+                j++;
+            }
+        }
+        // what is left over on one side: the end of a leader, or lost pulses
+        if (i < segment.a_end && i > segment.a_start && j > segment.b_start && inRun(a, i, segment.a_start)) {
+            i = skipRun(a, i, segment.a_end, a.get(i - 1), -1, segment);
+        }
+        if (j < segment.b_end && i > segment.a_start && j > segment.b_start && inRun(b, j, segment.b_start)) {
+            j = skipRun(b, j, segment.b_end, b.get(j - 1), -1, segment);
+        }
+        // a recording may lack the pause that ends the tape
+        while (i < segment.a_end && a.get(i) >= PAUSE_CYCLES) {
+            i++;
+            segment.run_pulses++;
+        }
+        while (j < segment.b_end && b.get(j) >= PAUSE_CYCLES) {
+            j++;
+            segment.run_pulses++;
+        }
+        if (i < segment.a_end) {
+            segment.diverge(Kind.MISSING, i, j, a.get(i), 0);
+            segment.missing += segment.a_end - i - 1;
+        }
+        if (j < segment.b_end) {
+            segment.diverge(Kind.EXTRA, i, j, 0, b.get(j));
+            segment.extra += segment.b_end - j - 1;
+        }
+    }
+
+    // true if the MIN_RUN pulses before pos are the same
+    private boolean inRun(PulseArray pulses, int pos, int start) {
+        if (pos - MIN_RUN < start) return false;
+        int value = pulses.get(pos - 1);
+        for (int n = pos - MIN_RUN; n < pos - 1; n++) {
+            if (!matches(pulses.get(n), value)) return false;
+        }
+        return true;
+    }
+
+    // skips the pulses like value, stopping at one matching until (the other side)
+    private int skipRun(PulseArray pulses, int pos, int end, int value, int until, Segment segment) {
+        while (pos < end && matches(pulses.get(pos), value) && (until < 0 || !matches(pulses.get(pos), until))) {
+            pos++;
+            segment.run_pulses++;
+        }
+        return pos;
+    }
+
+    private boolean confirm(Segment segment, int i, int j) {
+        for (int n = 0; n < RESYNC_CONFIRM; n++) {
+            boolean a_end = i + n >= segment.a_end;
+            boolean b_end = j + n >= segment.b_end;
+            if (a_end || b_end) return a_end && b_end;
+            if (!matches(a.get(i + n), b.get(j + n))) return false;
+        }
+        return true;
+    }
+
+    // reference block holding pulse i, -1 if it is between blocks
+    private int blockAt(int i) {
+        int n = Arrays.binarySearch(block_start, 0, blocks.size(), i);
+        if (n < 0) n = -n - 2;
+        return n >= 0 && i < block_end[n] ? n : -1;
+    }
+
+    public enum Kind {
+        // a pulse out of tolerance
+        DIFFERENT,
+        // the candidate has pulses the reference hasn't
+        EXTRA,
+        // the candidate lacks pulses of the reference
+        MISSING,
+        // a reference pulse is two pulses on the candidate
+        SPLIT,
+        // two reference pulses are one on the candidate
+        MERGED
+    }
+
+    /**
+     * Where the tapes part: pulse numbers, file offsets and lengths in cycles
+     * on both; a length is 0 past the end of its tape.
+     */
+    public final class Divergence {
+        public final Kind kind;
+        public final int referencePulse;
+        public final int candidatePulse;
+        public final int referenceCycles;
+        public final int candidateCycles;
+
+        Divergence(Kind kind, int referencePulse, int candidatePulse, int referenceCycles, int candidateCycles) {
+            this.kind = kind;
+            this.referencePulse = referencePulse;
+            this.candidatePulse = candidatePulse;
+            this.referenceCycles = referenceCycles;
+            this.candidateCycles = candidateCycles;
+        }
+
+        public int getReferenceOffset() {
+            return a.getOffset(referencePulse);
+        }
+
+        public int getCandidateOffset() {
+            return b.getOffset(candidatePulse);
+        }
+
+        public double getTime() {
+            return reference.getIndex().pos2time(getReferenceOffset());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s at %.3f s, pulse %d (offset %d) vs %d (offset %d): %d vs %d cycles",
+                    kind, getTime(), referencePulse, getReferenceOffset(), candidatePulse, getCandidateOffset(),
+                    referenceCycles, candidateCycles);
+        }
+    }
+
+    /**
+     * Length differences of the pulses that matched, pauses left out. Drift is
+     * how much longer the candidate ran over them.
+     */
+    public static class Stats {
+        private long count;
+        private long sum;
+        private long sum_sq;
+        private int max;
+        private long reference_cycles;
+        private long candidate_cycles;
+        // first pulse of a chunk that didn't match, -1 if all did
+        private int diverged = -1;
+
+        void add(int x, int y) {
+            if (x >= PAUSE_CYCLES || y >= PAUSE_CYCLES) return;
+            int d = y - x;
+            count++;
+            sum += d;
+            sum_sq += (long) d * d;
+            max = Math.max(max, Math.abs(d));
+            reference_cycles += x;
+            candidate_cycles += y;
+        }
+
+        void merge(Stats other) {
+            count += other.count;
+            sum += other.sum;
+            sum_sq += other.sum_sq;
+            max = Math.max(max, other.max);
+            reference_cycles += other.reference_cycles;
+            candidate_cycles += other.candidate_cycles;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        public double getStdDev() {
+            if (count == 0) return 0;
+            double mean = getMean();
+            return Math.sqrt(Math.max(0, (double) sum_sq / count - mean * mean));
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public long getDrift() {
+            return candidate_cycles - reference_cycles;
+        }
+
+        /**
+         * Speed of the candidate against the reference in parts per million,
+         * positive if it is slower.
+         */
+        public double getDriftPpm() {
+            return reference_cycles > 0 ? getDrift() * 1e6 / reference_cycles : 0;
+        }
+    }
+
+    // pulses [a_start, a_end) of the reference against [b_start, b_end) of the candidate
+    private class Segment {
+        final int a_start;
+        final int b_start;
+        final int a_end;
+        final int b_end;
+        final Stats stats = new Stats();
+        // lowest pulse where a chunk diverged, later chunks need not be compared
+        final AtomicInteger dirty = new AtomicInteger(Integer.MAX_VALUE);
+        int resume = -1;
+        Divergence first;
+        long divergences;
+        long extra;
+        long missing;
+        long run_pulses;
+
+        Segment(int a_start, int b_start, int a_end, int b_end) {
+            this.a_start = a_start;
+            this.b_start = b_start;
+            this.a_end = a_end;
+            this.b_end = b_end;
+        }
+
+        void diverge(Kind kind, int i, int j, int x, int y) {
+            if (first == null) first = new Divergence(kind, i, j, x, y);
+            divergences++;
+            if (kind == Kind.EXTRA) extra++;
+            if (kind == Kind.MISSING) missing++;
+            int n = blockAt(Math.min(i, a.size() - 1));
+            if (n >= 0) mismatched.set(n);
+        }
+    }
+
+    /**
+     * Outcome of {@link #verify()}.
+     */
+    public final class Report {
+        private final int tolerance;
+        private final Stats stats = new Stats();
+        private final List<CbmBlock> blocks = new ArrayList<>();
+        private Divergence first;
+        private long divergences;
+        private long extra;
+        private long missing;
+        private long run_pulses;
+        private int leading_reference;
+        private int leading_candidate;
+        private double elapsed;
+
+        Report(int tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        /**
+         * True if every pulse matched and every block has a twin.
+         */
+        public boolean isEquivalent() {
+            return first == null && blocks.isEmpty();
+        }
+
+        /**
+         * First place the tapes part, null if they don't.
+         */
+        public Divergence getFirstDivergence() {
+            return first;
+        }
+
+        public Stats getStats() {
+            return stats;
+        }
+
+        /**
+         * Reference blocks with a divergence inside, or missing from the candidate.
+         */
+        public List<CbmBlock> getMismatchedBlocks() {
+            return Collections.unmodifiableList(blocks);
+        }
+
+        public int getTolerance() {
+            return tolerance;
+        }
+
+        public long getDivergenceCount() {
+            return divergences;
+        }
+
+        /**
+         * Pulses only the candidate has, leaders and pauses aside.
+         */
+        public long getExtraPulses() {
+            return extra;
+        }
+
+        /**
+         * Pulses the candidate lacks, leaders and pauses aside.
+         */
+        public long getMissingPulses() {
+            return missing;
+        }
+
+        /**
+         * Pulses skipped because one leader was longer than the other, or a
+         * pause was only on one tape.
+         */
+        public long getLeaderDifference() {
+            return run_pulses;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(isEquivalent() ? "Equivalent" : "Different");
+            text.append(String.format(Locale.ROOT, " within %d cycles, %d pulses compared in %.2f s%n", tolerance, stats.getCount(), elapsed));
+            text.append(String.format(Locale.ROOT, "Aligned at pulse %d of the reference and %d of the candidate%n", leading_reference, leading_candidate));
+            text.append(String.format(Locale.ROOT, "Divergences %d, extra pulses %d, missing pulses %d, leader and pause pulses skipped %d%n",
+                    divergences, extra, missing, run_pulses));
+            text.append(String.format(Locale.ROOT, "Difference mean %.1f, deviation %.1f, max %d cycles; drift %d cycles (%.0f ppm)%n",
+                    stats.getMean(), stats.getStdDev(), stats.getMax(), stats.getDrift(), stats.getDriftPpm()));
+            if (first != null) text.append("First divergence: ").append(first).append(System.lineSeparator());
+            for (CbmBlock block : blocks) text.append("Mismatched block: ").append(block).append(System.lineSeparator());
+            return text.toString().trim();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A device behind a serial to TCP bridge (ser2net and the like), name {@code tcp:host:port}.
+ * <p>
+ * The line speed is the bridge's business, so the rate cannot be changed from here.
+ */
+public class TcpTransport implements Transport {
+    public static final String PREFIX = "tcp:";
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    private final String address;
+    private SocketChannel channel;
+
+    public TcpTransport(String address) {
+        this.address = address;
+    }
+
+    @Override
+    public void open() throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IOException("Expected host:port, got " + address);
+        String host = address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad port in " + address);
+        }
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            // frames are small and latency bound
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) channel.write(src);
+    }
+
+    @Override
+    public boolean setRate(int rate) {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    @Override
+    public boolean prefersDirectBuffers() {
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.TextArea;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Shows the log in a TextArea.
+ * <p>
+ * Messages are collected from the drain thread and appended once per frame by an
+ * AnimationTimer, so the FX queue sees no more than one update per pulse however
+ * much is logged. Only the last {@code max_lines} lines are kept
+ * ({@code -Duno2tap.logLines}, default 2000).
+ */
+public class TextAreaLogSink implements LogSink {
+    private static final int MAX_LINES = Integer.getInteger("uno2tap.logLines", 2000);
+
+    private final TextArea textArea;
+    private final int max_lines;
+    // text waiting for the next frame, guarded by this
+    private StringBuilder pending = new StringBuilder();
+    private int pending_lines;
+    // length of each line shown, FX thread only
+    private final ArrayDeque<Integer> line_lengths = new ArrayDeque<>();
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            update();
+        }
+    };
+
+    public TextAreaLogSink(TextArea textArea) {
+        this(textArea, MAX_LINES);
+    }
+
+    /**
+     * Must be created on the FX thread.
+     */
+    public TextAreaLogSink(TextArea textArea, int max_lines) {
+        this.textArea = textArea;
+        this.max_lines = Math.max(1, max_lines);
+        timer.start();
+    }
+
+    @Override
+    public synchronized void publish(List<Log.Entry> batch) {
+        for (Log.Entry entry : batch) {
+            if (entry.level.compareTo(Log.Level.WARN) >= 0) pending.append(entry.level).append(": ");
+            pending.append(entry.message).append('\n');
+        }
+        pending_lines += batch.size();
+        // no point keeping what would be trimmed anyway
+        if (pending_lines > 2 * max_lines) {
+            int cut = 0;
+            while (pending_lines > max_lines) {
+                cut = pending.indexOf("\n", cut) + 1;
+                pending_lines--;
+            }
+            pending.delete(0, cut);
+        }
+    }
+
+    private void update() {
+        String text;
+        synchronized (this) {
+            if (pending.length() == 0) return;
+            text = pending.toString();
+            pending = new StringBuilder();
+            pending_lines = 0;
+        }
+        int start = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', start)) >= 0) {
+            line_lengths.add(newline + 1 - start);
+            start = newline + 1;
+        }
+        textArea.appendText(text);
+
+        int trim = 0;
+        while (line_lengths.size() > max_lines) trim += line_lengths.poll();
+        if (trim > 0) textArea.deleteText(0, Math.min(trim, textArea.getLength()));
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+}
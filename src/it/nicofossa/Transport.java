@@ -0,0 +1,71 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte link between {@link SerialHardwareController} and a device.
+ * <p>
+ * Device names pick the implementation: {@code tcp:host:port} for a serial to
+ * network bridge ({@link TcpTransport}), {@code tty:/dev/ttyUSB0} for a tty opened
+ * directly ({@link TtyTransport}, Linux), anything else is a port for RXTX
+ * ({@link RxtxTransport}). A {@code /dev/...} name also goes to the tty transport
+ * when RXTX is not installed.
+ */
+public interface Transport {
+    /**
+     * Opens the link, throws IOException if the device cannot be reached.
+     */
+    void open() throws IOException;
+
+    /**
+     * Reads what is available into dst, blocking until something arrives. May return
+     * 0 after a while with nothing read; returns -1 once the link is gone.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes all remaining bytes of src.
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Changes the line speed, returns false if this link cannot.
+     */
+    boolean setRate(int rate);
+
+    /**
+     * Closes the link, unblocking a pending read.
+     */
+    void close();
+
+    /**
+     * True if writes from direct buffers avoid a copy, frames are allocated accordingly.
+     */
+    default boolean prefersDirectBuffers() {
+        return false;
+    }
+
+    static Transport forDevice(String name, int rate) {
+        if (name.startsWith(TcpTransport.PREFIX)) return new TcpTransport(name.substring(TcpTransport.PREFIX.length()));
+        if (name.startsWith(TtyTransport.PREFIX)) return new TtyTransport(name.substring(TtyTransport.PREFIX.length()), rate);
+        if (name.startsWith("/dev/") && !RxtxTransport.isAvailable()) return new TtyTransport(name, rate);
+        return new RxtxTransport(name, rate);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A tty device opened as a file, Linux only; no native library needed.
+ * <p>
+ * The line is set up with {@code stty}: raw mode and a read timeout of
+ * {@link #READ_TIMEOUT_DS} tenths of a second, after which a read returns with
+ * nothing, like the RXTX receive timeout.
+ */
+public class TtyTransport implements Transport {
+    public static final String PREFIX = "tty:";
+    private static final int READ_TIMEOUT_DS = 6;
+
+    private final String path;
+    private final int rate;
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    public TtyTransport(String path, int rate) {
+        this.path = path;
+        this.rate = rate;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (!new File(path).exists()) throw new IOException("No such device " + path);
+        stty(rate);
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+    }
+
+    private void stty(int speed) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder("stty", "-F", path, Integer.toString(speed),
+                "raw", "-echo", "-hupcl", "min", "0", "time", Integer.toString(READ_TIMEOUT_DS));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buf = new byte[256];
+            int n;
+            while ((n = in.read(buf)) > 0) output.write(buf, 0, n);
+        }
+        try {
+            if (process.waitFor() != 0) throw new IOException("stty failed: " + output.toString().trim());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while setting up " + path);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = channel.read(dst);
+        // a tty read that times out looks like the end of a file, but the line is still there
+        return Math.max(n, 0);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) channel.write(src);
+    }
+
+    @Override
+    public boolean setRate(int rate) {
+        try {
+            stty(rate);
+            return true;
+        } catch (IOException e) {
+            Log.write("Could not set " + rate + " baud: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (file != null) file.close();
+        } catch (IOException ignored) {
+        }
+        file = null;
+        channel = null;
+    }
+
+    @Override
+    public boolean prefersDirectBuffers() {
+        return true;
+    }
+}
@@ -0,0 +1,564 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-process model of the uno2tap firmware, seen through a pair of streams.
+ * <p>
+ * It follows {@code uno2tap_fw.ino}: commands while idle, a ring of
+ * {@link #NUM_XFRS} transfers of {@link #XFR_SIZE} bytes whose first byte is a
+ * command, 'N' requests (per received transfer for protocol 1, per free slot for
+ * protocol 2), 'E' when the ring runs dry, and the motor line stalling playback
+ * while the ring is kept full, reported with 'M' and 'm'.
+ * Compressed transfers (runs of pulses, see {@link FrameEncoder}) are decoded too.
+ * Pulses are timed on a simulated clock at {@link TapeIndex#CLOCK} Hz, and the
+ * serial link delivers bytes at the configured baud rate into a 64 byte receive
+ * buffer that drops bytes when full, like the real UART.
+ * <p>
+ * The simulated clock can follow the wall clock, run a fixed factor faster, or
+ * not wait at all; in the last case the link is instantaneous and the device
+ * waits for data instead of reporting underruns, which measures how fast the
+ * host pipeline alone can go.
+ */
+public class VirtualArduino {
+    public static final int XFR_SIZE = 48;
+    public static final int NUM_XFRS = 8;
+    private static final int RX_BUFFER_SIZE = 64;
+    private static final int BAUD_RATE = 115200;
+    // 8 data bits, start and stop
+    private static final long BYTE_NANOS = 10 * 1000000000L / BAUD_RATE;
+    // do not bother sleeping for less than this
+    private static final long MIN_SLEEP_NANOS = 2000000;
+
+    public enum Speed {REALTIME, ACCELERATED, UNTHROTTLED}
+
+    private final Speed speed;
+    private final double factor;
+    private final int protocolSupported;
+
+    private final Pipe toHost = new Pipe(4096);
+    private final Wire fromHost = new Wire();
+    private final OutputStream hostOutput = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            fromHost.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            fromHost.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            VirtualArduino.this.close();
+        }
+    };
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile boolean motorOn = true;
+    private volatile boolean senseOn;
+
+    private long wallStart;
+
+    // firmware state
+    private int protocol = 1;
+    private boolean playing;
+    private boolean preBuffering;
+    private final byte[][] ring = new byte[NUM_XFRS][XFR_SIZE];
+    private int readSlot, readPos, writeSlot, writePos, entries;
+    private int readingExtended;
+    private final int[] extendedData = new int[3];
+    private boolean compressed;
+    private int rleState;
+    private int rleCount;
+    private int runValue;
+    private int runRemaining;
+    private boolean starved;
+
+    // statistics
+    private volatile long simNanos;
+    private volatile long pulsesPlayed;
+    private volatile long underruns;
+    private volatile long overruns;
+    private volatile long transfersReceived;
+
+    /**
+     * @param speed             how the simulated clock relates to the wall clock
+     * @param factor            speed up for {@link Speed#ACCELERATED}, ignored otherwise
+     * @param protocolSupported 1 to behave like firmware that does not know 'V'
+     */
+    public VirtualArduino(Speed speed, double factor, int protocolSupported) {
+        this.speed = speed;
+        this.factor = speed == Speed.ACCELERATED ? factor : 1.0;
+        this.protocolSupported = protocolSupported;
+    }
+
+    public VirtualArduino(Speed speed, double factor) {
+        this(speed, factor, 2);
+    }
+
+    public InputStream getInputStream() {
+        return toHost.input;
+    }
+
+    public OutputStream getOutputStream() {
+        return hostOutput;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        wallStart = System.nanoTime();
+        thread = new Thread(this::run, "uno2tap-virtual-arduino");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        running = false;
+        fromHost.close();
+        toHost.close();
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * Turns the motor line on or off, the change is reported to the host like the firmware does.
+     */
+    public void setMotor(boolean on) {
+        if (motorOn == on) return;
+        motorOn = on;
+        try {
+            toHost.write(on ? 'M' : 'm');
+        } catch (IOException ignored) {
+        }
+    }
+
+    public boolean isMotorOn() {
+        return motorOn;
+    }
+
+    public boolean isSenseOn() {
+        return senseOn;
+    }
+
+    public long getSimulatedNanos() {
+        return simNanos;
+    }
+
+    public long getPulsesPlayed() {
+        return pulsesPlayed;
+    }
+
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public long getTransfersReceived() {
+        return transfersReceived;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s x%.1f: %.3f s simulated, %d pulses, %d transfers, %d underruns, %d overruns",
+                speed, factor, simNanos / 1e9, pulsesPlayed, transfersReceived, underruns, overruns);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (!playing) {
+                    // idle firmware polls every 100 ms, answering at once is close enough
+                    int cmd = fromHost.take();
+                    if (speed != Speed.UNTHROTTLED) simNanos = Math.max(simNanos, wallToSim(System.nanoTime()));
+                    execute(cmd);
+                    continue;
+                }
+                if (!motorOn) {
+                    // nothing is played, but the ring is kept full and a stop still obeyed
+                    advance(1000000);
+                    if (stopPending()) {
+                        playing = false;
+                        continue;
+                    }
+                    receive();
+                    continue;
+                }
+                if (!playPulse()) break;
+            }
+        } catch (InterruptedException | IOException ignored) {
+        }
+        running = false;
+    }
+
+    private void execute(int cmd) throws IOException {
+        switch (cmd) {
+            case 'P':
+                toHost.write('P');
+                break;
+            case 'V':
+                if (protocolSupported < 2) break;
+                // a new host, forget what the last one set up
+                compressed = false;
+                protocol = 2;
+                toHost.write(new byte[]{'V', 2, XFR_SIZE, NUM_XFRS, FrameEncoder.CAP_RLE | SerialHardwareController.CAP_MOTOR});
+                break;
+            case 'C':
+                compressed = true;
+                break;
+            case 'R':
+                playing = true;
+                preBuffering = true;
+                readSlot = readPos = writeSlot = writePos = entries = 0;
+                readingExtended = 0;
+                rleState = 0;
+                runRemaining = 0;
+                starved = false;
+                int credits = protocol >= 2 ? NUM_XFRS : 1;
+                for (int i = 0; i < credits; i++) toHost.write('N');
+                toHost.write(motorOn ? 'M' : 'm');
+                break;
+            case 'r':
+                playing = false;
+                break;
+            case 'S':
+                senseOn = true;
+                break;
+            case 's':
+                senseOn = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    // a stop already in the ring, or at the head of the link with all of its transfer there
+    private boolean stopPending() {
+        int slot = readSlot;
+        for (int i = 0; i < entries; i++) {
+            if ((i > 0 || readPos == 0) && ring[slot][0] == 'r') return true;
+            slot = (slot + 1) % NUM_XFRS;
+        }
+        if (writePos == 0 && fromHost.arrived(simNanos) >= XFR_SIZE && fromHost.peek() == 'r') {
+            for (int i = 0; i < XFR_SIZE; i++) fromHost.poll(simNanos);
+            return true;
+        }
+        return false;
+    }
+
+    // copies what has arrived into the ring; like the firmware a transfer is only
+    // started once all of it is there, so commands after a stop stay commands
+    private void receive() throws IOException {
+        while (entries < NUM_XFRS) {
+            if (writePos == 0 && fromHost.arrived(simNanos) < XFR_SIZE) break;
+            int b = fromHost.poll(simNanos);
+            if (b < 0) break;
+            ring[writeSlot][writePos++] = (byte) b;
+            if (writePos == XFR_SIZE) {
+                writePos = 0;
+                writeSlot = (writeSlot + 1) % NUM_XFRS;
+                entries++;
+                transfersReceived++;
+                if (protocol < 2) toHost.write('N');
+            }
+        }
+        if (entries == NUM_XFRS) fromHost.discardOverflow(simNanos);
+    }
+
+    private boolean playPulse() throws IOException, InterruptedException {
+        if (runRemaining > 0) {
+            runRemaining--;
+            pulsesPlayed++;
+            advance((long) (runValue * 8 * 1e9 / TapeIndex.CLOCK));
+            return true;
+        }
+
+        receive();
+        if (preBuffering) {
+            if (entries < NUM_XFRS) {
+                waitForData();
+                return true;
+            }
+            preBuffering = false;
+        }
+
+        if (entries < 1) {
+            if (!starved) {
+                starved = true;
+                underruns++;
+                if (speed != Speed.UNTHROTTLED) toHost.write('E');
+            }
+            waitForData();
+            return true;
+        }
+        starved = false;
+
+        // first byte of a transfer is a command
+        if (readPos == 0) {
+            execute(ring[readSlot][readPos++] & 0xff);
+            if (!playing) return true;
+        }
+
+        int tap_data = ring[readSlot][readPos++] & 0xff;
+        if (readPos == XFR_SIZE) {
+            readPos = 0;
+            readSlot = (readSlot + 1) % NUM_XFRS;
+            entries--;
+            if (protocol >= 2) toHost.write('N');
+        }
+
+        if (rleState == 1) {
+            rleCount = tap_data;
+            rleState = 2;
+            return true;
+        }
+        if (rleState == 2) {
+            rleState = 0;
+            if (rleCount == 0) return true;
+            runValue = tap_data;
+            runRemaining = rleCount - 1;
+        } else if (compressed && readingExtended == 0 && tap_data == FrameEncoder.RLE_ESCAPE) {
+            rleState = 1;
+            return true;
+        }
+
+        long cycles;
+        if (readingExtended > 0) {
+            readingExtended--;
+            extendedData[readingExtended] = tap_data;
+            if (readingExtended > 0) return true;
+            // stored backwards, the first byte received is the least significant
+            cycles = ((long) extendedData[0] << 16) | (extendedData[1] << 8) | extendedData[2];
+        } else if (tap_data == 0) {
+            readingExtended = 3;
+            return true;
+        } else {
+            cycles = tap_data * 8L;
+        }
+
+        pulsesPlayed++;
+        advance((long) (cycles * 1e9 / TapeIndex.CLOCK));
+        return true;
+    }
+
+    // lets simulated time pass until more data can have arrived
+    private void waitForData() throws InterruptedException {
+        if (speed == Speed.UNTHROTTLED) {
+            fromHost.awaitData();
+        } else {
+            advance(Math.max(BYTE_NANOS, fromHost.nextArrival() - simNanos));
+        }
+    }
+
+    private void advance(long nanos) {
+        simNanos += nanos;
+        if (speed == Speed.UNTHROTTLED) return;
+        long wallTarget = wallStart + (long) (simNanos / factor);
+        long ahead = wallTarget - System.nanoTime();
+        if (ahead > MIN_SLEEP_NANOS) {
+            try {
+                Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+
+    private long wallToSim(long wall) {
+        return (long) ((wall - wallStart) * factor);
+    }
+
+    /**
+     * The serial link from the host: bytes become visible to the firmware one
+     * byte time after each other, and are lost if the receive buffer is full.
+     */
+    private class Wire {
+        private final byte[] data = new byte[1 << 16];
+        private final long[] arrival = new long[1 << 16];
+        private long head, tail;
+        private long lastArrival;
+        private boolean closed;
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            long now = wallToSim(System.nanoTime());
+            for (int i = 0; i < len; i++) {
+                while (!closed && tail - head == data.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) throw new IOException("Port closed");
+                lastArrival = Math.max(now, lastArrival) + (speed == Speed.UNTHROTTLED ? 0 : BYTE_NANOS);
+                data[(int) (tail % data.length)] = b[off + i];
+                arrival[(int) (tail % data.length)] = lastArrival;
+                tail++;
+            }
+            notifyAll();
+        }
+
+        // next byte that arrived by the given simulated time, or -1
+        synchronized int poll(long simNow) {
+            if (head == tail) return -1;
+            int i = (int) (head % data.length);
+            if (speed != Speed.UNTHROTTLED && arrival[i] > simNow) return -1;
+            head++;
+            notifyAll();
+            return data[i] & 0xff;
+        }
+
+        // number of bytes that arrived by the given simulated time, up to a transfer
+        synchronized int arrived(long simNow) {
+            long end = head;
+            while (end < tail && end - head < XFR_SIZE
+                    && (speed == Speed.UNTHROTTLED || arrival[(int) (end % data.length)] <= simNow)) end++;
+            return (int) (end - head);
+        }
+
+        synchronized int peek() {
+            return head == tail ? -1 : data[(int) (head % data.length)] & 0xff;
+        }
+
+        // drops what arrived while the receive buffer was already full
+        synchronized void discardOverflow(long simNow) {
+            if (speed == Speed.UNTHROTTLED) return;
+            long end = head;
+            while (end < tail && arrival[(int) (end % data.length)] <= simNow) end++;
+            long firstLost = head + RX_BUFFER_SIZE;
+            if (end <= firstLost) return;
+            int lost = (int) (end - firstLost);
+            for (long i = end; i < tail; i++) {
+                data[(int) ((i - lost) % data.length)] = data[(int) (i % data.length)];
+                arrival[(int) ((i - lost) % data.length)] = arrival[(int) (i % data.length)];
+            }
+            tail -= lost;
+            overruns += lost;
+            notifyAll();
+        }
+
+        synchronized int take() throws InterruptedException {
+            while (head == tail && !closed) wait();
+            if (closed) throw new InterruptedException();
+            int b = data[(int) (head % data.length)] & 0xff;
+            head++;
+            notifyAll();
+            return b;
+        }
+
+        synchronized void awaitData() throws InterruptedException {
+            while (head == tail && !closed) wait();
+        }
+
+        synchronized long nextArrival() {
+            return head < tail ? arrival[(int) (head % data.length)] : simNanos + 1000000;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Bounded blocking byte queue used for what the firmware sends to the host.
+     */
+    private static class Pipe {
+        private final byte[] data;
+        private long head, tail;
+        private boolean closed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int size) {
+            data = new byte[size];
+        }
+
+        synchronized void write(int b) throws IOException {
+            while (!closed && tail - head == data.length) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) throw new IOException("Port closed");
+            data[(int) (tail++ % data.length)] = (byte) b;
+            notifyAll();
+        }
+
+        void write(byte[] b) throws IOException {
+            for (byte x : b) write(x);
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (head == tail && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (head == tail) return -1;
+            int n = 0;
+            while (n < len && head < tail) b[off + n++] = data[(int) (head++ % data.length)];
+            notifyAll();
+            return n;
+        }
+
+        synchronized int available() {
+            return (int) (tail - head);
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
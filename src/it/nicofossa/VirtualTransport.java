@@ -0,0 +1,72 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Link to a {@link VirtualArduino} in the same process.
+ */
+public class VirtualTransport implements Transport {
+    private final VirtualArduino device;
+
+    public VirtualTransport(VirtualArduino device) {
+        this.device = device;
+    }
+
+    @Override
+    public void open() {
+        device.start();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasArray()) {
+            byte[] buf = new byte[dst.remaining()];
+            int n = device.getInputStream().read(buf, 0, buf.length);
+            if (n > 0) dst.put(buf, 0, n);
+            return n;
+        }
+        int n = device.getInputStream().read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        if (n > 0) dst.position(dst.position() + n);
+        return n;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (src.hasArray()) {
+            device.getOutputStream().write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            byte[] buf = new byte[src.remaining()];
+            src.get(buf);
+            device.getOutputStream().write(buf);
+        }
+    }
+
+    @Override
+    public boolean setRate(int rate) {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        Log.write("Virtual device: " + device);
+        device.close();
+    }
+}
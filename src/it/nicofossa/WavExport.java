@@ -0,0 +1,129 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a tape as a square wave WAV, 8 bit mono, that {@link WavTapeStorage} and
+ * other tools read back. Each pulse is high for its first half and low for the
+ * second; half-wave images switch level on every value. The tape is read through
+ * a small buffer and the samples go out in blocks, so memory does not grow with
+ * the length of the tape.
+ */
+public class WavExport {
+    public static final int RATE = Integer.getInteger("uno2tap.wav.rate", 44100);
+    private static final int HEADER_SIZE = 44;
+    private static final byte HIGH = (byte) (128 + 100);
+    private static final byte LOW = (byte) (128 - 100);
+    private static final int BLOCK = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK);
+    private final double samples_per_cycle;
+    private long written;
+    private double cycles;
+
+    private WavExport(File file, double clock) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        samples_per_cycle = RATE / clock;
+        channel.write(header(0), 0);
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * Writes the whole tape, whatever its position, to file.
+     */
+    public static void export(Tape tape, File file) throws IOException {
+        long start = System.nanoTime();
+        TapHeader header = tape.getHeader();
+        WavExport wav = new WavExport(file, header.getClock());
+        try {
+            byte[] buf = new byte[BLOCK];
+            int pos = header.getDataStart();
+            int end = header.getDataEnd();
+            boolean high = true;
+            while (pos < end) {
+                int n = Math.min(buf.length, end - pos);
+                tape.get(pos, buf, 0, n);
+                int i = 0;
+                while (i < n) {
+                    int first = buf[i] & 0xff;
+                    int length = header.valueLength(first);
+                    // an extended value split by the buffer is read again next time
+                    if (i + length > n && pos + i + length <= end) break;
+                    int d1 = i + 1 < n ? buf[i + 1] & 0xff : 0;
+                    int d2 = i + 2 < n ? buf[i + 2] & 0xff : 0;
+                    int d3 = i + 3 < n ? buf[i + 3] & 0xff : 0;
+                    long pulse = header.valueCycles(first, d1, d2, d3);
+                    if (header.isHalfWave()) {
+                        wav.level(high, pulse);
+                        high = !high;
+                    } else {
+                        wav.level(true, pulse / 2.0);
+                        wav.level(false, pulse / 2.0);
+                    }
+                    i += Math.min(length, n - i);
+                }
+                pos += i;
+            }
+            wav.finish();
+        } finally {
+            wav.channel.close();
+        }
+        Log.write(String.format("Exported %s to %s, %.1f s in %d ms", tape.getFile().getName(), file.getName(),
+                wav.written / (double) RATE, (System.nanoTime() - start) / 1000000));
+    }
+
+    // the level until the given number of cycles have passed
+    private void level(boolean high, double length) throws IOException {
+        cycles += length;
+        long until = (long) (cycles * samples_per_cycle);
+        byte value = high ? HIGH : LOW;
+        while (written < until) {
+            if (!block.hasRemaining()) flush();
+            block.put(value);
+            written++;
+        }
+    }
+
+    private void flush() throws IOException {
+        block.flip();
+        while (block.hasRemaining()) channel.write(block);
+        block.clear();
+    }
+
+    private void finish() throws IOException {
+        flush();
+        channel.write(header(written), 0);
+    }
+
+    private static ByteBuffer header(long samples) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt((int) (36 + samples)).putInt(0x45564157);
+        header.putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 1);
+        header.putInt(RATE).putInt(RATE).putShort((short) 1).putShort((short) 8);
+        header.putInt(0x61746164).putInt((int) samples);
+        header.flip();
+        return header;
+    }
+}
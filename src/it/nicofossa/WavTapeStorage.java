@@ -0,0 +1,351 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A sampled datasette recording seen as a version 1 TAP image.
+ * <p>
+ * The audio is cut into chunks of {@link #CHUNK_SAMPLES} samples. A pulse is the
+ * time between two rising edges and belongs to the chunk its first edge is in;
+ * the last pulse of a chunk reads on into the next one. A pulse that goes quiet
+ * for {@link #SETTLE_SAMPLES} past the end of its chunk is a pause instead, ended
+ * there as an extended value; the next chunk plays the rest of it. Edges are
+ * rounded to the TAP unit grid counted from the start of the recording rather
+ * than pulse lengths to units, so what one pulse loses the next one gains, across
+ * chunks too, and durations add up even though edges fall on the sample grid. An edge is the signal
+ * going above {@link #THRESHOLD} after having been below -THRESHOLD, placed
+ * between two samples by interpolation; with a threshold of 0 that is a plain zero
+ * crossing. Recordings of the opposite polarity need {@link #INVERT}. Quiet stretches of {@link #SETTLE_SAMPLES} reset the detector, so
+ * decoding a chunk from a little before its start gives the same edges as decoding
+ * the whole file, and chunks can be decoded on their own.
+ * <p>
+ * Opening counts the TAP bytes of every chunk, in parallel; afterwards reads decode
+ * the chunks they touch again, keeping only the last few. Memory stays the same for
+ * recordings of any length and nothing is written to disk.
+ */
+public class WavTapeStorage implements TapeStorage {
+    /**
+     * Fraction of full scale the signal must cross to count, 0 for zero crossings.
+     */
+    public static final double THRESHOLD = Double.parseDouble(System.getProperty("uno2tap.wav.threshold", "0.03"));
+    /**
+     * Measures between falling edges instead, for recordings made with the other polarity.
+     */
+    public static final boolean INVERT = Boolean.getBoolean("uno2tap.wav.invert");
+    private static final int CHUNK_SAMPLES = 1 << 16;
+    private static final int SETTLE_SAMPLES = 256;
+    private static final int CACHED_CHUNKS = 4;
+    // sample frames read from the file at a time
+    private static final int READ_FRAMES = 8192;
+    private static final int MAX_EXTENDED = 0xffffff;
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final FileChannel channel;
+    private final int channels;
+    private final int bits;
+    private final boolean floating;
+    private final int rate;
+    private final int frameSize;
+    private final long dataOffset;
+    private final long frames;
+
+    private final byte[] header;
+    // TAP data offset of the first pulse of each chunk, one more entry for the end
+    private final int[] chunkOffsets;
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_CHUNKS;
+        }
+    };
+
+    public WavTapeStorage(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(buf, 0);
+            if (buf.getInt(0) != 0x46464952 || buf.getInt(8) != 0x45564157) throw new IOException("Not a WAV file: " + file);
+
+            int format = -1;
+            int channels = 0;
+            int bits = 0;
+            int rate = 0;
+            long dataOffset = -1;
+            long dataLength = 0;
+            long pos = 12;
+            ByteBuffer chunk = ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN);
+            while (pos + 8 <= channel.size()) {
+                chunk.clear().limit(8);
+                readFully(chunk, pos);
+                int id = chunk.getInt(0);
+                long length = chunk.getInt(4) & 0xffffffffL;
+                if (id == 0x20746d66) { // "fmt "
+                    chunk.clear().limit((int) Math.min(26, length));
+                    readFully(chunk, pos + 8);
+                    format = chunk.getShort(0) & 0xffff;
+                    channels = chunk.getShort(2) & 0xffff;
+                    rate = chunk.getInt(4);
+                    bits = chunk.getShort(14) & 0xffff;
+                    if (format == FORMAT_EXTENSIBLE && length >= 26) format = chunk.getShort(24) & 0xffff;
+                } else if (id == 0x61746164) { // "data"
+                    dataOffset = pos + 8;
+                    // recorders that were cut off leave the length at 0 or too long
+                    dataLength = Math.min(length == 0 ? Long.MAX_VALUE : length, channel.size() - dataOffset);
+                    break;
+                }
+                pos += 8 + length + (length & 1);
+            }
+            if (dataOffset < 0 || channels == 0 || rate <= 0) throw new IOException("Invalid WAV file: " + file);
+            boolean pcm = format == FORMAT_PCM && (bits == 8 || bits == 16 || bits == 24);
+            boolean floating = format == FORMAT_FLOAT && bits == 32;
+            if (!pcm && !floating) throw new IOException("Unsupported WAV format " + format + ", " + bits + " bits: " + file);
+
+            this.channels = channels;
+            this.bits = bits;
+            this.floating = floating;
+            this.rate = rate;
+            this.frameSize = channels * bits / 8;
+            this.dataOffset = dataOffset;
+            this.frames = dataLength / frameSize;
+
+            long start = System.nanoTime();
+            int count = (int) ((frames + CHUNK_SAMPLES - 1) / CHUNK_SAMPLES);
+            int[] sizes = new int[count];
+            IntStream.range(0, count).parallel().forEach(k -> sizes[k] = decode(k).length);
+            chunkOffsets = new int[count + 1];
+            long total = 0;
+            for (int k = 0; k < count; k++) {
+                chunkOffsets[k] = (int) total;
+                total += sizes[k];
+                if (total > Integer.MAX_VALUE - TapHeader.SIZE) throw new IOException("Recording too long: " + file);
+            }
+            chunkOffsets[count] = (int) total;
+            header = TapHeader.create(total);
+            Log.write(String.format("%s: %d Hz, %d bits, %d channels, %.1f s, %d TAP bytes in %d ms",
+                    file.getName(), rate, bits, channels, frames / (double) rate, total, (System.nanoTime() - start) / 1000000));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static boolean isWav(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".wav");
+    }
+
+    private void readFully(ByteBuffer dst, long pos) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0) throw new EOFException();
+            pos += n;
+        }
+    }
+
+    // TAP values of the pulses starting in chunk k
+    private byte[] decode(int k) {
+        long start = (long) k * CHUNK_SAMPLES;
+        long end = Math.min(frames, start + CHUNK_SAMPLES);
+        long from = Math.max(0, start - SETTLE_SAMPLES);
+        double level = THRESHOLD;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(CHUNK_SAMPLES / 8);
+        ByteBuffer buf = ByteBuffer.allocate(READ_FRAMES * frameSize).order(ByteOrder.LITTLE_ENDIAN);
+        // 1 above the level, -1 below, 0 not known or quiet too long
+        int state = 0;
+        int quiet = 0;
+        double previous = 0;
+        double last_edge = -1;
+        long i = from;
+        try {
+            while (i < frames) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), (frames - i) * frameSize));
+                readFully(buf, dataOffset + i * frameSize);
+                buf.flip();
+                while (buf.remaining() >= frameSize) {
+                    // nothing reads on into the next chunk
+                    if (i >= end && last_edge < 0) return out.toByteArray();
+                    double sample = INVERT ? -sample(buf) : sample(buf);
+                    if (sample > level) {
+                        if (state == -1 && i >= start) {
+                            double edge = i - 1 + (level - previous) / (sample - previous);
+                            if (last_edge >= 0) pulse(out, units(edge) - units(last_edge));
+                            // the first edge in the next chunk ends the last pulse of this one
+                            if (i >= end) return out.toByteArray();
+                            last_edge = edge;
+                        }
+                        state = 1;
+                        quiet = 0;
+                    } else if (sample < -level) {
+                        state = -1;
+                        quiet = 0;
+                    } else if (++quiet >= SETTLE_SAMPLES) {
+                        state = 0;
+                        if (i >= end) {
+                            pause(out, (units(end) - units(last_edge)) * 8);
+                            return out.toByteArray();
+                        }
+                        // the rest of a pause the previous chunk ended
+                        if (last_edge < 0 && k > 0 && i >= start) last_edge = start;
+                    }
+                    previous = sample;
+                    i++;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the recording", e);
+        }
+        return out.toByteArray();
+    }
+
+    // first channel as -1..1
+    private double sample(ByteBuffer buf) {
+        int pos = buf.position();
+        double value;
+        if (floating) {
+            value = buf.getFloat(pos);
+        } else if (bits == 8) {
+            value = ((buf.get(pos) & 0xff) - 128) / 128.0;
+        } else if (bits == 16) {
+            value = buf.getShort(pos) / 32768.0;
+        } else {
+            value = ((buf.get(pos) & 0xff) | (buf.get(pos + 1) & 0xff) << 8 | buf.get(pos + 2) << 16) / 8388608.0;
+        }
+        buf.position(pos + frameSize);
+        return value;
+    }
+
+    // TAP units from the start of the recording to a point between samples
+    private long units(double sample) {
+        return Math.round(sample * TapeIndex.CLOCK / rate / 8);
+    }
+
+    private static void pulse(ByteArrayOutputStream out, long units) {
+        if (units < 1) units = 1;
+        if (units < 256) {
+            out.write((int) units);
+            return;
+        }
+        pause(out, units * 8);
+    }
+
+    private static void pause(ByteArrayOutputStream out, long cycles) {
+        while (cycles > 0) {
+            int part = (int) Math.min(cycles, MAX_EXTENDED);
+            out.write(0);
+            out.write(part);
+            out.write(part >> 8);
+            out.write(part >> 16);
+            cycles -= part;
+        }
+    }
+
+    private byte[] chunk(int k) {
+        synchronized (cache) {
+            byte[] data = cache.get(k);
+            if (data != null) return data;
+        }
+        byte[] data = decode(k);
+        synchronized (cache) {
+            cache.put(k, data);
+        }
+        return data;
+    }
+
+    // chunk holding TAP data offset pos, skipping chunks without pulses
+    private int chunkAt(int pos) {
+        int i = Arrays.binarySearch(chunkOffsets, pos);
+        if (i < 0) return -i - 2;
+        while (i + 1 < chunkOffsets.length && chunkOffsets[i + 1] == pos) i++;
+        return i;
+    }
+
+    public int getSampleRate() {
+        return rate;
+    }
+
+    @Override
+    public int size() {
+        return header.length + chunkOffsets[chunkOffsets.length - 1];
+    }
+
+    @Override
+    public int get(int pos) {
+        if (pos < header.length) return header[pos] & 0xff;
+        int data = pos - header.length;
+        int k = chunkAt(data);
+        return chunk(k)[data - chunkOffsets[k]] & 0xff;
+    }
+
+    @Override
+    public void get(int pos, byte[] dst, int off, int len) {
+        while (len > 0 && pos < header.length) {
+            dst[off++] = header[pos++];
+            len--;
+        }
+        while (len > 0) {
+            int data = pos - header.length;
+            int k = chunkAt(data);
+            byte[] values = chunk(k);
+            int n = Math.min(len, chunkOffsets[k + 1] - data);
+            System.arraycopy(values, data - chunkOffsets[k], dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void get(int pos, ByteBuffer dst, int len) {
+        byte[] buf = new byte[len];
+        get(pos, buf, 0, len);
+        dst.put(buf);
+    }
+
+    @Override
+    public ByteBuffer slice(int pos, int len) {
+        byte[] buf = new byte[len];
+        get(pos, buf, 0, len);
+        return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
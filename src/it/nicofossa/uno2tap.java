@@ -16,6 +16,7 @@
   */
 package it.nicofossa;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -23,6 +24,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
@@ -51,10 +53,47 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
     @FXML
     private Button rewindButton;
 
+    @FXML
+    private Button previousFileButton;
+
+    @FXML
+    private Button nextFileButton;
+
+    @FXML
+    private Button recordButton;
+
+    @FXML
+    private Label timeLabel;
+
+    @FXML
+    private Button catalogButton;
+
+    @FXML
+    private Button sessionsButton;
+
+    @FXML
+    private TextField searchField;
+
+    @FXML
+    private ListView<TapeCatalog.Entry> catalogList;
+
+    private TapeCatalog catalog;
+
     private CassetteRecorder cassetteRecorder;
 
     private Stage stage;
 
+    // the tape position is sampled once per frame instead of being pushed by the streaming thread
+    private final AnimationTimer positionTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            updatePosition();
+        }
+    };
+    private Tape shownTape;
+    private int shownPos = -1;
+    private String shownTime = "";
+
 
     public static void main(String[] args) {
         launch(args);
@@ -63,7 +102,10 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
     @Override
     public void start(Stage primaryStage) throws IOException {
         stage = primaryStage;
-        Parent root = FXMLLoader.load(getClass().getClassLoader().getResource("uno2tap.fxml"));
+        FXMLLoader loader = new FXMLLoader(getClass().getClassLoader().getResource("uno2tap.fxml"));
+        // inject the controls into this instance instead of a new controller
+        loader.setControllerFactory(type -> this);
+        Parent root = loader.load();
 
         Scene scene = new Scene(root);
 
@@ -71,13 +113,6 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
         primaryStage.setScene(scene);
         primaryStage.show();
 
-        connectdisconnectButton = (Button) scene.lookup("#connectdisconnectButton");
-        playstopButton = (Button) scene.lookup("#playstopButton");
-        openButton = (Button) scene.lookup("#openButton");
-        cassetteProgress = (ProgressBar) scene.lookup("#cassetteProgress");
-        debugTextArea = (TextArea) scene.lookup("#debugTextArea");
-        rewindButton = (Button) scene.lookup("#rewindButton");
-
         connectdisconnectButton.setOnMouseClicked((event) -> {
             connectdisconnectButtonClick();
         });
@@ -86,6 +121,26 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
 
         openButton.setOnMouseClicked(event -> openButtonClick());
         rewindButton.setOnMouseClicked(event -> rewindButton());
+        previousFileButton.setOnMouseClicked(event -> {
+            if (cassetteRecorder != null) cassetteRecorder.seekToPreviousFile();
+        });
+        nextFileButton.setOnMouseClicked(event -> {
+            if (cassetteRecorder != null) cassetteRecorder.seekToNextFile();
+        });
+        recordButton.setOnMouseClicked(event -> recordButtonClick());
+        catalogButton.setOnMouseClicked(event -> catalogButtonClick());
+        sessionsButton.setOnMouseClicked(event -> new SessionDashboard().show());
+        searchField.textProperty().addListener((observable, oldText, newText) -> updateCatalogList());
+        searchField.setOnAction(event -> {
+            if (!catalogList.getItems().isEmpty()) loadFromCatalog(catalogList.getItems().get(0));
+        });
+        catalogList.setOnMouseClicked(event -> {
+            TapeCatalog.Entry entry = catalogList.getSelectionModel().getSelectedItem();
+            if (event.getClickCount() == 2 && entry != null) loadFromCatalog(entry);
+        });
+
+        catalog = new TapeCatalog(TapeCatalog.defaultCacheFile());
+        updateCatalogList();
 
         primaryStage.setOnCloseRequest((windowEvent) -> {
 
@@ -106,12 +161,44 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
         });
 
         //debugTextArea.setEditable(false);
-        Log.setTextArea(debugTextArea);
+        Log.addSink(new TextAreaLogSink(debugTextArea));
 
         openButton.setDisable(true);
         playstopButton.setDisable(true);
         rewindButton.setDisable(true);
+        previousFileButton.setDisable(true);
+        nextFileButton.setDisable(true);
+        recordButton.setDisable(true);
 
+        positionTimer.start();
+    }
+
+    private void updatePosition() {
+        CassetteRecorder recorder = cassetteRecorder;
+        Tape tape = recorder != null ? recorder.getTape() : null;
+        int pos = tape != null ? recorder.getPlayedPos(tape) : -1;
+        if (tape == shownTape && pos == shownPos) return;
+        shownTape = tape;
+        shownPos = pos;
+
+        String time = "";
+        if (tape == null) {
+            cassetteProgress.setProgress(0);
+        } else {
+            int start = tape.getHeader().getDataStart();
+            int length = Math.max(1, tape.getDataEnd() - start);
+            cassetteProgress.setProgress(Math.min(1.0, Math.max(0, pos - start) / (double) length));
+            time = formatTime(recorder.getPlayedTime(tape)) + " / " + formatTime(tape.getTotalTime());
+        }
+        if (!time.equals(shownTime)) {
+            timeLabel.setText(time);
+            shownTime = time;
+        }
+    }
+
+    private static String formatTime(double seconds) {
+        int total = (int) seconds;
+        return String.format("%d:%02d", total / 60, total % 60);
     }
 
     private void rewindButton() {
@@ -127,6 +214,8 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Select a TAP file...");
             fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("C64 TAP file", "*.tap"));
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Tape recording", "*.wav"));
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("C64 program", "*.prg", "*.t64"));
             File file = fileChooser.showOpenDialog(stage);
             if (file != null && file.exists()) {
                 cassetteRecorder.setTape(file);
@@ -136,6 +225,68 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
 
     }
 
+    private void catalogButtonClick() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select a folder of TAP files...");
+        File folder = directoryChooser.showDialog(stage);
+        if (folder == null) return;
+
+        catalogButton.setDisable(true);
+        Thread scan = new Thread(() -> {
+            try {
+                catalog.scan(folder);
+            } finally {
+                Platform.runLater(() -> {
+                    catalogButton.setDisable(false);
+                    updateCatalogList();
+                });
+            }
+        }, "Catalog scan");
+        scan.setDaemon(true);
+        scan.start();
+    }
+
+    private void updateCatalogList() {
+        catalogList.getItems().setAll(catalog.search(searchField.getText()));
+    }
+
+    private void loadFromCatalog(TapeCatalog.Entry entry) {
+        if (cassetteRecorder == null) {
+            Log.write("Connect to a device before loading a tape");
+            return;
+        }
+        if (cassetteRecorder.getState() == CassetteRecorder.State.STOPPED) cassetteRecorder.ejectTape();
+        if (cassetteRecorder.getState() != CassetteRecorder.State.EJECTED) {
+            Log.write("Stop the cassette before loading another one");
+            return;
+        }
+        try {
+            cassetteRecorder.setTape(entry.getFile());
+            Log.write("Loaded " + entry);
+        } catch (IllegalArgumentException e) {
+            Log.write("Could not load " + entry.path + ": " + e.getMessage());
+        }
+    }
+
+    private void recordButtonClick() {
+        if (cassetteRecorder == null) return;
+
+        if (cassetteRecorder.getState() == CassetteRecorder.State.RECORDING) {
+            cassetteRecorder.stop();
+            return;
+        }
+
+        if (cassetteRecorder.getState() == CassetteRecorder.State.EJECTED) {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Record to TAP file...");
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("C64 TAP file", "*.tap"));
+            File file = fileChooser.showSaveDialog(stage);
+            if (file != null) {
+                cassetteRecorder.record(file);
+            }
+        }
+    }
+
     private void playstopButtonClicked() {
         if (cassetteRecorder == null) return;
 
@@ -157,11 +308,11 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
 
 
             alert.setTitle("COM port");
-            alert.setContentText("Insert the serial port name");
+            alert.setContentText("Insert the serial port name (or \"virtual\" for a simulated device)");
 
             Optional<String> result = alert.showAndWait();
             if (result.isPresent()) {
-                HardwareController hardwareController = new SerialHardwareController(result.get());
+                HardwareController hardwareController = SessionManager.createController(result.get());
                 cassetteRecorder = new CassetteRecorder(hardwareController);
                 hardwareController.setRecorder(cassetteRecorder);
 
@@ -173,6 +324,9 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
                 openButton.setDisable(false);
                 playstopButton.setDisable(false);
                 rewindButton.setDisable(false);
+                previousFileButton.setDisable(false);
+                nextFileButton.setDisable(false);
+                recordButton.setDisable(false);
             }
 
 
@@ -189,17 +343,14 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
             openButton.setDisable(true);
             playstopButton.setDisable(true);
             rewindButton.setDisable(true);
+            previousFileButton.setDisable(true);
+            nextFileButton.setDisable(true);
+            recordButton.setDisable(true);
         }
 
     }
 
 
-    @Override
-    public void onPosUpdated(final int pos, final int lenght) {
-        Platform.runLater(() -> cassetteProgress.setProgress(((double) pos) / lenght));
-
-    }
-
     @Override
     public void onCassetteRecorderStateChanged(CassetteRecorder.State state) {
         Platform.runLater(() -> {
@@ -207,12 +358,19 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
                     connectdisconnectButton.setDisable(false);
                     playstopButton.setDisable(false);
                     rewindButton.setDisable(false);
+                    previousFileButton.setDisable(false);
+                    nextFileButton.setDisable(false);
+                    recordButton.setDisable(true);
+                    recordButton.setText("Record");
 
 
                     switch (state) {
                         case EJECTED:
                             playstopButton.setDisable(true);
                             rewindButton.setDisable(true);
+                            previousFileButton.setDisable(true);
+                            nextFileButton.setDisable(true);
+                            recordButton.setDisable(false);
                             playstopButton.setText("Play");
                             break;
                         case STOPPED:
@@ -222,10 +380,19 @@ public class uno2tap extends Application implements CassetteRecorder.CasseteReco
                             connectdisconnectButton.setDisable(true);
                             openButton.setDisable(true);
                             rewindButton.setDisable(true);
+                            previousFileButton.setDisable(true);
+                            nextFileButton.setDisable(true);
                             playstopButton.setText("Stop");
                             break;
                         case RECORDING:
-                            //NOT IMPLEMENTED FOR NOW
+                            connectdisconnectButton.setDisable(true);
+                            openButton.setDisable(true);
+                            rewindButton.setDisable(true);
+                            previousFileButton.setDisable(true);
+                            nextFileButton.setDisable(true);
+                            playstopButton.setDisable(true);
+                            recordButton.setDisable(false);
+                            recordButton.setText("Stop");
                             break;
                     }
                 }
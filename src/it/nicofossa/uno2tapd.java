@@ -0,0 +1,384 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Headless launcher: runs recorders without JavaFX, controlled by text commands.
+ * <p>
+ * Commands come one per line from stdin and, with {@code --port n}, from clients
+ * of a socket on the loopback address. Every command gets one line of JSON back,
+ * {@code {"ok":true,...}} or {@code {"ok":false,"error":"..."}}. The log goes to
+ * stderr so stdout only carries replies.
+ * <pre>
+ * connect DEVICE       open a session and make it current
+ * use DEVICE           make an open session current
+ * disconnect           close the current session
+ * insert FILE          eject a stopped cassette and insert the file
+ * eject | play | stop | rewind
+ * seek SECONDS | seek next | seek prev | seek block N
+ * record FILE          record what the C64 saves, the recorder must be empty
+ * export FILE          write the inserted tape as a WAV file
+ * verify FILE [CYCLES] compare FILE with the inserted tape, see {@link TapeVerifier}
+ * status               state of the current session
+ * sessions             state of all sessions
+ * quit                 end this client
+ * shutdown             close all sessions and exit
+ * </pre>
+ * Arguments: {@code [--port n] [--no-stdin] [--connect DEVICE]...}
+ */
+public class uno2tapd {
+    private static final long SETTLE_TIMEOUT_MS = 3000;
+
+    private final SessionManager manager = new SessionManager();
+
+    public static void main(String[] args) throws IOException {
+        Log.addSink(batch -> {
+            for (Log.Entry entry : batch) System.err.println(entry.message);
+        });
+
+        uno2tapd daemon = new uno2tapd();
+        int port = -1;
+        boolean stdin = true;
+        Client console = daemon.new Client(new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), true));
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--no-stdin":
+                    stdin = false;
+                    break;
+                case "--connect":
+                    console.execute("connect " + args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: uno2tapd [--port n] [--no-stdin] [--connect DEVICE]...");
+                    System.exit(2);
+            }
+        }
+        if (port >= 0) daemon.listen(port, !stdin);
+        if (stdin) {
+            console.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            daemon.shutdown();
+        }
+    }
+
+    private void listen(int port, boolean foreground) throws IOException {
+        ServerSocket server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        Log.write("Listening on " + server.getLocalSocketAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread client = new Thread(() -> serve(socket), "Client " + socket.getPort());
+                    client.setDaemon(true);
+                    client.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }, "Control socket");
+        acceptor.setDaemon(!foreground);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            new Client(new PrintWriter(out, true)).serve(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.write("Control client: " + e.getMessage());
+        }
+    }
+
+    private void shutdown() {
+        manager.closeAll();
+        Log.flush();
+        System.exit(0);
+    }
+
+    /**
+     * One command stream with its own current session.
+     */
+    private class Client {
+        private final PrintWriter out;
+        private DeviceSession current;
+
+        Client(PrintWriter out) {
+            this.out = out;
+        }
+
+        void serve(Reader in) throws IOException {
+            BufferedReader reader = new BufferedReader(in);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!execute(line)) return;
+            }
+        }
+
+        // false when the client is done
+        boolean execute(String line) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) return true;
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toLowerCase(Locale.ROOT);
+            String argument = space < 0 ? "" : line.substring(space + 1).trim();
+            try {
+                switch (command) {
+                    case "quit":
+                        reply(ok());
+                        return false;
+                    case "shutdown":
+                        reply(ok());
+                        shutdown();
+                        return false;
+                    default:
+                        reply(run(command, argument));
+                }
+            } catch (RuntimeException e) {
+                reply(error(e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+            return true;
+        }
+
+        private String run(String command, String argument) {
+            switch (command) {
+                case "connect": {
+                    DeviceSession session = manager.get(argument);
+                    if (session == null) {
+                        List<DeviceSession> opened = manager.open(Collections.singletonList(argument));
+                        if (opened.isEmpty()) return error("could not connect to " + argument);
+                        session = opened.get(0);
+                    }
+                    current = session;
+                    return status(session);
+                }
+                case "use": {
+                    DeviceSession session = manager.get(argument);
+                    if (session == null) return error("no session " + argument);
+                    current = session;
+                    return status(session);
+                }
+                case "sessions": {
+                    StringBuilder json = new StringBuilder("{\"ok\":true,\"sessions\":[");
+                    List<DeviceSession> sessions = manager.getSessions();
+                    for (int i = 0; i < sessions.size(); i++) {
+                        if (i > 0) json.append(',');
+                        json.append(fields(sessions.get(i)));
+                    }
+                    return json.append("]}").toString();
+                }
+                default:
+                    break;
+            }
+
+            if (current == null) return error("no session, connect first");
+            CassetteRecorder recorder = current.getRecorder();
+            switch (command) {
+                case "status":
+                    return status(current);
+                case "disconnect":
+                    manager.close(current);
+                    current = null;
+                    return ok();
+                case "insert":
+                    if (!new File(argument).isFile()) return error("no such file " + argument);
+                    if (!current.insert(new File(argument))) return error("recorder busy");
+                    return status(current);
+                case "eject":
+                    if (recorder.getState() != CassetteRecorder.State.STOPPED) return error("recorder must be stopped");
+                    recorder.ejectTape();
+                    return status(current);
+                case "play":
+                    if (recorder.getState() != CassetteRecorder.State.STOPPED) return error("recorder must be stopped");
+                    return settle(recorder.play());
+                case "stop": {
+                    CassetteRecorder.State state = recorder.getState();
+                    if (state != CassetteRecorder.State.PLAYING && state != CassetteRecorder.State.RECORDING) {
+                        return error("recorder is not running");
+                    }
+                    return settle(recorder.stop());
+                }
+                case "rewind":
+                    if (recorder.getState() != CassetteRecorder.State.STOPPED) return error("recorder must be stopped");
+                    recorder.rewind();
+                    return status(current);
+                case "seek":
+                    return seek(recorder, argument);
+                case "export":
+                    if (recorder.getTape() == null) return error("no tape inserted");
+                    try {
+                        WavExport.export(recorder.getTape(), new File(argument));
+                    } catch (IOException e) {
+                        return error("could not write " + argument + ": " + e.getMessage());
+                    }
+                    return ok();
+                case "verify":
+                    if (recorder.getTape() == null) return error("no tape inserted");
+                    return verify(recorder.getTape(), argument);
+                case "record":
+                    if (recorder.getState() != CassetteRecorder.State.EJECTED) return error("recorder must be empty");
+                    return settle(recorder.record(new File(argument)));
+                default:
+                    return error("unknown command " + command);
+            }
+        }
+
+        // the device acknowledges asynchronously, replies once it did so a script can go on
+        private String settle(CompletableFuture<CassetteRecorder.State> done) {
+            try {
+                done.get(SETTLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return error("device did not acknowledge in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                return error(String.valueOf(e.getCause()));
+            }
+            return status(current);
+        }
+
+        private String seek(CassetteRecorder recorder, String argument) {
+            if (recorder.getState() != CassetteRecorder.State.STOPPED) return error("recorder must be stopped");
+            boolean found;
+            if (argument.equals("next")) {
+                found = recorder.seekToNextFile();
+            } else if (argument.equals("prev")) {
+                found = recorder.seekToPreviousFile();
+            } else if (argument.startsWith("block ")) {
+                found = recorder.seekToBlock(Integer.parseInt(argument.substring(6).trim()));
+            } else {
+                recorder.setTime(Double.parseDouble(argument));
+                found = true;
+            }
+            return found ? status(current) : error("no such file or block");
+        }
+
+        private String verify(Tape tape, String argument) {
+            String[] parts = argument.split("\\s+");
+            File file = new File(parts[0]);
+            if (!file.isFile()) return error("no such file " + parts[0]);
+            int tolerance = parts.length > 1 ? Integer.parseInt(parts[1]) : TapeVerifier.DEFAULT_TOLERANCE;
+            Tape other = new Tape(file);
+            try {
+                TapeVerifier.Report report = new TapeVerifier(tape, other, tolerance).verify();
+                TapeVerifier.Stats stats = report.getStats();
+                StringBuilder json = new StringBuilder("{\"ok\":true");
+                json.append(",\"equivalent\":").append(report.isEquivalent());
+                json.append(",\"compared\":").append(stats.getCount());
+                json.append(",\"divergences\":").append(report.getDivergenceCount());
+                json.append(",\"extra\":").append(report.getExtraPulses());
+                json.append(",\"missing\":").append(report.getMissingPulses());
+                json.append(String.format(Locale.ROOT, ",\"mean\":%.1f,\"deviation\":%.1f,\"max\":%d,\"drift_ppm\":%.0f",
+                        stats.getMean(), stats.getStdDev(), stats.getMax(), stats.getDriftPpm()));
+                TapeVerifier.Divergence first = report.getFirstDivergence();
+                if (first != null) {
+                    json.append(",\"first\":{\"kind\":").append(quote(first.kind.name()));
+                    json.append(String.format(Locale.ROOT, ",\"time\":%.3f", first.getTime()));
+                    json.append(",\"pos\":").append(first.getReferenceOffset());
+                    json.append(",\"other_pos\":").append(first.getCandidateOffset()).append('}');
+                }
+                json.append(",\"blocks\":[");
+                List<CbmBlock> blocks = report.getMismatchedBlocks();
+                for (int i = 0; i < blocks.size(); i++) {
+                    if (i > 0) json.append(',');
+                    json.append(quote(blocks.get(i).toString()));
+                }
+                return json.append("]}").toString();
+            } finally {
+                other.close();
+            }
+        }
+
+        private void reply(String json) {
+            out.println(json);
+        }
+    }
+
+    private static String ok() {
+        return "{\"ok\":true}";
+    }
+
+    private static String error(String message) {
+        return "{\"ok\":false,\"error\":" + quote(message) + "}";
+    }
+
+    private static String status(DeviceSession session) {
+        return "{\"ok\":true," + fields(session).substring(1);
+    }
+
+    private static String fields(DeviceSession session) {
+        CassetteRecorder recorder = session.getRecorder();
+        StreamMetrics metrics = session.getController().getMetrics();
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"device\":").append(quote(session.getName()));
+        json.append(",\"connected\":").append(session.isConnected());
+        json.append(",\"state\":").append(quote(recorder.getState().name()));
+        Tape tape = recorder.getTape();
+        if (tape != null) {
+            json.append(",\"tape\":").append(quote(tape.getFile().getPath()));
+            json.append(",\"pos\":").append(recorder.getPlayedPos(tape));
+            json.append(",\"end\":").append(tape.getDataEnd());
+            json.append(String.format(Locale.ROOT, ",\"elapsed\":%.3f,\"total\":%.3f", recorder.getPlayedTime(tape), tape.getTotalTime()));
+        }
+        json.append(",\"motor\":").append(recorder.isMotorOn());
+        json.append(String.format(Locale.ROOT, ",\"throughput\":%.0f", metrics.getThroughput()));
+        json.append(",\"frames\":").append(metrics.getFramesSent());
+        json.append(",\"underruns\":").append(metrics.getUnderruns());
+        return json.append('}').toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+}
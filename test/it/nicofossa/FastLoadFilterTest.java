@@ -0,0 +1,180 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks what {@link FastLoadFilter} keeps of leaders and pauses, and that
+ * {@link FastLoadFilter#estimate} agrees with filtering the tape value by value.
+ */
+public class FastLoadFilterTest {
+    private static final double CLOCK = 985248;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TapHeader header;
+
+    @Before
+    public void setUp() throws IOException {
+        Tape tape = new Tape(write(new byte[]{0x30}));
+        header = tape.getHeader();
+        tape.close();
+    }
+
+    @Test
+    public void leaderTrimmed() {
+        FastLoadFilter filter = new FastLoadFilter(10, 1.0, header);
+        for (int i = 0; i < 10; i++) assertEquals(0x30 * 8, filter.filter(0x30 * 8, false));
+        for (int i = 0; i < 5; i++) assertEquals(0, filter.filter(0x30 * 8, false));
+        // a different pulse starts a new run
+        assertEquals(0x42 * 8, filter.filter(0x42 * 8, false));
+        assertEquals(5 * 0x30 * 8 / CLOCK, filter.getSavedTime(), 1e-12);
+    }
+
+    @Test
+    public void toleranceEdges() {
+        FastLoadFilter filter = new FastLoadFilter(2, 1.0, header);
+        assertEquals(0x30 * 8, filter.filter(0x30 * 8, false));
+        // two units either way of the first pulse still belong to the run
+        assertEquals(0x32 * 8, filter.filter(0x32 * 8, false));
+        assertEquals(0, filter.filter(0x2e * 8, false));
+        assertEquals(0, filter.filter(0x32 * 8 + 7, false));
+        // three units off starts a new one
+        assertEquals(0x33 * 8, filter.filter(0x33 * 8, false));
+        assertEquals(0x31 * 8, filter.filter(0x31 * 8, false));
+        assertEquals(0, filter.filter(0x35 * 8, false));
+    }
+
+    @Test
+    public void pausesCappedTogether() {
+        FastLoadFilter filter = new FastLoadFilter(10, 0.5, header);
+        long max = (long) (0.5 * CLOCK);
+        assertEquals(max / 4, filter.filter(max / 4, true));
+        assertEquals(max - max / 4, filter.filter(3 * max, true));
+        assertEquals(0, filter.filter(max, true));
+        // a pulse ends the run of pauses
+        assertEquals(0x30 * 8, filter.filter(0x30 * 8, false));
+        assertEquals(max, filter.filter(3 * max, true));
+        assertEquals((5 * max + max / 4) / CLOCK, filter.getSavedTime(), 1e-12);
+        filter.resetSaved();
+        assertEquals(0, filter.getSavedTime(), 0);
+    }
+
+    @Test
+    public void pauseEndsLeader() {
+        FastLoadFilter filter = new FastLoadFilter(2, 1.0, header);
+        filter.filter(0x30 * 8, false);
+        filter.filter(0x30 * 8, false);
+        filter.filter(20000, true);
+        assertEquals(0x30 * 8, filter.filter(0x30 * 8, false));
+    }
+
+    @Test
+    public void resetForgetsRuns() {
+        FastLoadFilter filter = new FastLoadFilter(2, 0.5, header);
+        long max = (long) (0.5 * CLOCK);
+        filter.filter(0x30 * 8, false);
+        filter.filter(0x30 * 8, false);
+        assertEquals(0, filter.filter(0x30 * 8, false));
+        filter.reset();
+        assertEquals(0x30 * 8, filter.filter(0x30 * 8, false));
+
+        filter.filter(max, true);
+        assertEquals(0, filter.filter(max, true));
+        filter.reset();
+        assertEquals(max, filter.filter(max, true));
+    }
+
+    @Test
+    public void estimateMatchesFiltering() throws IOException {
+        Random random = new Random(17);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (data.size() < 200000) {
+            int leader = random.nextInt(5000);
+            int value = 0x2c + random.nextInt(8);
+            for (int i = 0; i < leader; i++) data.write(value - 2 + random.nextInt(5));
+            int pulses = random.nextInt(3000);
+            for (int i = 0; i < pulses; i++) data.write(1 + random.nextInt(255));
+            // pauses in a row, some of them across the 64 KiB buffer of estimate
+            for (int n = random.nextInt(3); n >= 0; n--) {
+                int cycles = random.nextInt(0x1000000);
+                data.write(0);
+                data.write(cycles);
+                data.write(cycles >> 8);
+                data.write(cycles >> 16);
+            }
+        }
+        byte[] bytes = data.toByteArray();
+        int start = TapHeader.SIZE + 12345;
+        // estimate reads 64 KiB at a time from the start, make a pause straddle each buffer end
+        int pos = start - TapHeader.SIZE;
+        for (int end = pos + 65536; end < bytes.length - 4; end += 65536) {
+            while (pos + (bytes[pos] == 0 ? 4 : 1) <= end) pos += bytes[pos] == 0 ? 4 : 1;
+            if (pos < end - 1) continue;
+            bytes[pos] = 0;
+            bytes[pos + 3] = 0x10;
+        }
+        Tape tape = new Tape(write(bytes));
+        tape.setPos(start);
+        FastLoadFilter filter = new FastLoadFilter(1000, 0.3, header);
+        double estimate = FastLoadFilter.estimate(tape, filter);
+        assertEquals(start, tape.getPos());
+
+        FastLoadFilter walk = new FastLoadFilter(1000, 0.3, header);
+        // the start is not on a value boundary, so walk from where the tape is
+        pos = start - TapHeader.SIZE;
+        while (pos < bytes.length) {
+            int b = bytes[pos] & 0xff;
+            if (b == 0) {
+                long cycles = (bytes[pos + 1] & 0xff) | (bytes[pos + 2] & 0xff) << 8 | (long) (bytes[pos + 3] & 0xff) << 16;
+                walk.filter(cycles, true);
+                pos += 4;
+            } else {
+                walk.filter(b * 8, false);
+                pos++;
+            }
+        }
+        assertEquals(walk.getSavedTime(), estimate, 1e-9);
+        assertEquals(0, filter.getSavedTime(), 0);
+        tape.close();
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            byte[] header = TapHeader.create(data.length);
+            header[12] = 1;
+            out.write(header);
+            out.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stops {@link FrameEncoder} after every few frames and checks that
+ * {@link FrameEncoder#unread(Tape)} puts the tape on the first value the frames
+ * sent so far do not hold whole, and that nothing is lost or played twice.
+ */
+public class FrameEncoderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compressed() throws IOException {
+        check(true, false);
+    }
+
+    @Test
+    public void filtered() throws IOException {
+        check(false, true);
+    }
+
+    @Test
+    public void compressedFiltered() throws IOException {
+        check(true, true);
+    }
+
+    private void check(boolean compressed, boolean filtered) throws IOException {
+        Random random = new Random(compressed ? 1 : 2);
+        byte[] data = randomData(random);
+        Tape tape = new Tape(write(data));
+        List<Integer> offsets = valueOffsets(data);
+        FrameEncoder encoder = new FrameEncoder(compressed);
+        // keeps every value, so the pulses still match the file one to one
+        if (filtered) encoder.setFilter(new FastLoadFilter(Integer.MAX_VALUE, 1e6, tape.getHeader()));
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        ByteArrayOutputStream played = new ByteArrayOutputStream();
+        int whole = 0;
+        for (int stop = 0; !encoder.isFinished(tape); stop++) {
+            // small frames, so tokens are often split between frames
+            int frames = 1 + random.nextInt(20);
+            for (int i = 0; i < frames && !encoder.isFinished(tape); i++) {
+                ByteBuffer frame = ByteBuffer.allocate(1 + random.nextInt(6));
+                encoder.encode(tape, frame);
+                sent.write(frame.array(), 0, frame.position());
+            }
+            whole += decode(sent.toByteArray(), compressed, played);
+            encoder.unread(tape);
+            int expected = whole < offsets.size() ? offsets.get(whole) : tape.getDataEnd();
+            assertEquals("stop " + stop, expected, tape.getPos());
+            // a token split by the stop is sent again from its start
+            sent.reset();
+        }
+        // every value played once, then the padding of the last frame
+        byte[] out = played.toByteArray();
+        assertTrue(out.length >= data.length);
+        for (int i = 0; i < out.length; i++) {
+            assertEquals("byte " + i, i < data.length ? data[i] : 0x20, out[i]);
+        }
+        tape.close();
+    }
+
+    // whole pulses in the stream, appended to played as TAP bytes; a token cut at the end is left out
+    private static int decode(byte[] stream, boolean compressed, ByteArrayOutputStream played) {
+        int pulses = 0;
+        int i = 0;
+        while (i < stream.length) {
+            int b = stream[i] & 0xff;
+            if (b == 0) {
+                if (i + 4 > stream.length) break;
+                played.write(stream, i, 4);
+                i += 4;
+                pulses++;
+            } else if (compressed && b == FrameEncoder.RLE_ESCAPE) {
+                if (i + 3 > stream.length) break;
+                int run = stream[i + 1] & 0xff;
+                for (int n = 0; n < run; n++) played.write(stream[i + 2]);
+                i += 3;
+                pulses += run;
+            } else {
+                played.write(b);
+                i++;
+                pulses++;
+            }
+        }
+        return pulses;
+    }
+
+    // runs of one pulse, single pulses and extended values
+    private static byte[] randomData(Random random) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (data.size() < 30000) {
+            int kind = random.nextInt(10);
+            if (kind < 3) {
+                int value = 2 + random.nextInt(254);
+                for (int n = 3 + random.nextInt(600); n > 0; n--) data.write(value);
+            } else if (kind < 4) {
+                int cycles = 1 + random.nextInt(0xffffff);
+                data.write(0);
+                data.write(cycles);
+                data.write(cycles >> 8);
+                data.write(cycles >> 16);
+            } else {
+                for (int n = random.nextInt(20); n > 0; n--) data.write(1 + random.nextInt(255));
+            }
+        }
+        return data.toByteArray();
+    }
+
+    private static List<Integer> valueOffsets(byte[] data) {
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < data.length; i += data[i] == 0 ? 4 : 1) offsets.add(TapHeader.SIZE + i);
+        return offsets;
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            byte[] header = TapHeader.create(data.length);
+            header[12] = 1;
+            out.write(header);
+            out.write(data);
+        }
+        return file;
+    }
+}
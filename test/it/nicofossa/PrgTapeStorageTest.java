@@ -0,0 +1,311 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the synthesized images with {@link CbmDecoder}, reads the bytes of every
+ * block back from its pulses and checks the {@link TapeTimeline} methods against
+ * a linear walk of the image.
+ */
+public class PrgTapeStorageTest {
+    private static final int PULSES_PER_BYTE = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void program() throws IOException {
+        byte[] program = randomBytes(3000, 1);
+        File file = write("game.prg", withAddress(0x0801, program));
+        PrgTapeStorage storage = new PrgTapeStorage(file);
+        byte[] image = read(storage);
+
+        List<CbmBlock> blocks = decode(image);
+        assertEquals(blocks.toString(), 4, blocks.size());
+        checkFile(image, blocks, 0, "GAME", 0x0801, program);
+        assertEquals(TapHeader.SIZE, blocks.get(0).getLeaderOffset());
+        assertEquals(image.length, blocks.get(3).getEndOffset() + trailer(image, blocks.get(3)));
+    }
+
+    @Test
+    public void timeline() throws IOException {
+        File prg = write("game.prg", withAddress(0x0801, randomBytes(1000, 2)));
+        checkTimeline(new PrgTapeStorage(prg));
+        // two files, with the pause between them
+        File t64 = write("two.t64", t64(new Entry(1, "ONE", 0x0801, 0x0801 + 500, randomBytes(500, 3)),
+                new Entry(1, "TWO", 0x1000, 0x1000 + 300, randomBytes(300, 4))));
+        checkTimeline(new PrgTapeStorage(t64));
+    }
+
+    @Test
+    public void t64Entries() throws IOException {
+        byte[] first = randomBytes(700, 5);
+        byte[] second = randomBytes(400, 6);
+        byte[] skipped = randomBytes(100, 7);
+        // wrong end address, limited by the snapshot stored after it; a free entry; stored out of order
+        Entry one = new Entry(1, "FIRST", 0x0801, 0x0000, first);
+        Entry free = new Entry(0, "", 0, 0, new byte[0]);
+        Entry snapshot = new Entry(3, "FROZEN", 0x0400, 0x0400 + skipped.length, skipped);
+        Entry two = new Entry(1, "SECOND", 0xc000, 0xc000 + second.length, second);
+        File file = write("games.t64", t64(two, free, snapshot, one));
+        byte[] image = read(new PrgTapeStorage(file));
+
+        List<CbmBlock> blocks = decode(image);
+        assertEquals(blocks.toString(), 8, blocks.size());
+        // in the order they are stored in the container, not in the directory
+        checkFile(image, blocks, 0, "FIRST", 0x0801, first);
+        checkFile(image, blocks, 4, "SECOND", 0xc000, second);
+    }
+
+    @Test
+    public void t64EndAddressLimitsLength() throws IOException {
+        byte[] data = randomBytes(600, 8);
+        // the end address says 200 bytes, the container holds 600
+        File file = write("short.t64", t64(new Entry(1, "PART", 0x2000, 0x2000 + 200, data)));
+        List<CbmBlock> blocks = decode(read(new PrgTapeStorage(file)));
+        assertEquals(4, blocks.size());
+        assertArrayEquals(Arrays.copyOf(data, 200), blocks.get(2).getPayload());
+        assertEquals(0x2000 + 200, blocks.get(0).getEndAddress());
+    }
+
+    @Test(expected = IOException.class)
+    public void notT64() throws IOException {
+        new PrgTapeStorage(write("bad.t64", new byte[100]));
+    }
+
+    @Test
+    public void isProgram() {
+        assertTrue(PrgTapeStorage.isProgram(new File("GAME.PRG")));
+        assertTrue(PrgTapeStorage.isProgram(new File("games.T64")));
+        assertFalse(PrgTapeStorage.isProgram(new File("game.tap")));
+    }
+
+    // header block and its repeat at n, then the data block and its repeat
+    private static void checkFile(byte[] image, List<CbmBlock> blocks, int n, String name, int start, byte[] program) {
+        for (int i = 0; i < 4; i++) {
+            CbmBlock block = blocks.get(n + i);
+            assertTrue(block.toString(), block.isChecksumOk());
+            assertEquals(i % 2 == 1, block.isRepeat());
+            checkBytes(image, block);
+        }
+        CbmBlock header = blocks.get(n);
+        assertTrue(header.isHeader());
+        assertEquals(CbmBlock.TYPE_PROGRAM, header.getType());
+        assertEquals(name, header.getName());
+        assertEquals(start, header.getStartAddress());
+        assertEquals(start + program.length, header.getEndAddress());
+        assertArrayEquals(header.getPayload(), blocks.get(n + 1).getPayload());
+        assertArrayEquals(program, blocks.get(n + 2).getPayload());
+        assertArrayEquals(program, blocks.get(n + 3).getPayload());
+    }
+
+    // countdown, payload and checksum as pulses, the decoder hides the first and last
+    private static void checkBytes(byte[] image, CbmBlock block) {
+        byte[] payload = block.getPayload();
+        int pos = block.getStartOffset();
+        int countdown = block.isRepeat() ? 0x09 : 0x89;
+        for (int i = 0; i < 9; i++) assertEquals("countdown " + i, countdown - i, readByte(image, pos + i * PULSES_PER_BYTE));
+        int sum = 0;
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals("byte " + i, payload[i] & 0xff, readByte(image, pos + (9 + i) * PULSES_PER_BYTE));
+            sum ^= payload[i];
+        }
+        int end = pos + (9 + payload.length) * PULSES_PER_BYTE;
+        assertEquals("checksum", sum & 0xff, readByte(image, end));
+        // long-short end of data marker
+        assertEquals(0x56, image[end + PULSES_PER_BYTE] & 0xff);
+        assertEquals(0x30, image[end + PULSES_PER_BYTE + 1] & 0xff);
+    }
+
+    // long-medium marker, eight bits low first as short-medium for 0 and medium-short for 1, odd parity
+    private static int readByte(byte[] image, int pos) {
+        assertEquals(0x56, image[pos] & 0xff);
+        assertEquals(0x42, image[pos + 1] & 0xff);
+        int bits = 0;
+        for (int i = 0; i < 9; i++) {
+            int first = image[pos + 2 + 2 * i] & 0xff;
+            int second = image[pos + 3 + 2 * i] & 0xff;
+            assertTrue(first != second && (first == 0x30 || first == 0x42) && (second == 0x30 || second == 0x42));
+            if (first == 0x42) bits |= 1 << i;
+        }
+        assertEquals("parity", 1, Integer.bitCount(bits) & 1);
+        return bits & 0xff;
+    }
+
+    // short pulses after the end of a block up to the end of the image
+    private static int trailer(byte[] image, CbmBlock block) {
+        int n = 0;
+        while (block.getEndOffset() + n < image.length && (image[block.getEndOffset() + n] & 0xff) == 0x30) n++;
+        return n;
+    }
+
+    private static List<CbmBlock> decode(byte[] image) {
+        List<CbmBlock> blocks = new ArrayList<>();
+        CbmDecoder decoder = new CbmDecoder(blocks::add);
+        for (int pos = TapHeader.SIZE; pos < image.length; ) {
+            int value = image[pos] & 0xff;
+            if (value != 0) {
+                decoder.pulse(value * 8L, pos);
+                pos++;
+            } else {
+                decoder.pulse(cycles(image, pos), pos);
+                pos += 4;
+            }
+        }
+        decoder.finish(image.length);
+        return blocks;
+    }
+
+    /**
+     * Every offset against the walk from the start of data, as TapeIndexTest does for Tape.
+     */
+    private static void checkTimeline(PrgTapeStorage storage) {
+        byte[] image = read(storage);
+        assertEquals(image.length - TapHeader.SIZE, (image[16] & 0xff) | (image[17] & 0xff) << 8
+                | (image[18] & 0xff) << 16 | (image[19] & 0xff) << 24);
+        int pos = TapHeader.SIZE;
+        long total = 0;
+        int values = 0;
+        int pauses = 0;
+        while (pos < image.length) {
+            int length = image[pos] == 0 ? 4 : 1;
+            if (length == 4) pauses++;
+            for (int i = pos; i < pos + length; i++) {
+                assertEquals("valueStart " + i, pos, storage.valueStart(i));
+                assertEquals("cyclesBefore " + i, total, storage.cyclesBefore(i));
+                assertEquals("valuesBefore " + i, values, storage.valuesBefore(i));
+            }
+            total += image[pos] == 0 ? cycles(image, pos) : (image[pos] & 0xff) * 8L;
+            values++;
+            pos += length;
+        }
+        assertEquals(image.length, pos);
+        for (int i = 0; i <= TapHeader.SIZE; i++) {
+            assertEquals(TapHeader.SIZE, storage.valueStart(i));
+            assertEquals(0, storage.cyclesBefore(i));
+            assertEquals(0, storage.valuesBefore(i));
+        }
+        for (int i = image.length; i < image.length + 8; i++) {
+            assertEquals(image.length, storage.valueStart(i));
+            assertEquals(total, storage.cyclesBefore(i));
+            assertEquals(values, storage.valuesBefore(i));
+        }
+        assertTrue("no pauses walked", pauses > 0);
+    }
+
+    private static long cycles(byte[] image, int pos) {
+        return (image[pos + 1] & 0xff) | (image[pos + 2] & 0xff) << 8 | (long) (image[pos + 3] & 0xff) << 16;
+    }
+
+    // read in pieces that cross segments, as a player would
+    private static byte[] read(TapeStorage storage) {
+        byte[] image = new byte[storage.size()];
+        for (int pos = 0; pos < image.length; pos += 4093) {
+            storage.get(pos, image, pos, Math.min(4093, image.length - pos));
+        }
+        for (int pos = 0; pos < image.length; pos += 997) assertEquals(image[pos] & 0xff, storage.get(pos));
+        return image;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] withAddress(int start, byte[] program) {
+        byte[] data = new byte[2 + program.length];
+        data[0] = (byte) start;
+        data[1] = (byte) (start >> 8);
+        System.arraycopy(program, 0, data, 2, program.length);
+        return data;
+    }
+
+    private static class Entry {
+        final int type;
+        final String name;
+        final int start;
+        final int end;
+        final byte[] data;
+
+        Entry(int type, String name, int start, int end, byte[] data) {
+            this.type = type;
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.data = data;
+        }
+    }
+
+    // directory in the given order, data stored from the last entry back
+    private static byte[] t64(Entry... entries) {
+        int offset = 0x40 + entries.length * 32;
+        int size = offset;
+        for (Entry entry : entries) size += entry.data.length;
+        byte[] out = new byte[size];
+        byte[] magic = "C64 tape image file".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, out, 0, magic.length);
+        out[0x20] = 0x00;
+        out[0x21] = 0x01;
+        out[0x22] = (byte) entries.length;
+        out[0x24] = (byte) entries.length;
+        for (int i = entries.length - 1; i >= 0; i--) {
+            Entry entry = entries[i];
+            int e = 0x40 + i * 32;
+            out[e] = (byte) entry.type;
+            out[e + 1] = (byte) (entry.type == 0 ? 0 : 0x82);
+            out[e + 2] = (byte) entry.start;
+            out[e + 3] = (byte) (entry.start >> 8);
+            out[e + 4] = (byte) entry.end;
+            out[e + 5] = (byte) (entry.end >> 8);
+            for (int b = 0; b < 4; b++) out[e + 8 + b] = (byte) (offset >> (8 * b));
+            Arrays.fill(out, e + 16, e + 32, (byte) 0x20);
+            byte[] name = entry.name.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(name, 0, out, e + 16, name.length);
+            System.arraycopy(entry.data, 0, out, offset, entry.data.length);
+            offset += entry.data.length;
+        }
+        return out;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = folder.newFile(name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the {@link TapeIndex} lookups against a plain linear scan of the image,
+ * as Tape did before the index, on random images of every version.
+ */
+public class TapeIndexTest {
+    private static final int IMAGES = 20;
+    private static final int LOOKUPS = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void version0() throws IOException {
+        check(0);
+    }
+
+    @Test
+    public void version1() throws IOException {
+        check(1);
+    }
+
+    @Test
+    public void version2() throws IOException {
+        check(2);
+    }
+
+    private void check(int version) throws IOException {
+        Random random = new Random(version);
+        for (int n = 0; n < IMAGES; n++) {
+            byte[] data = randomImage(version, 1 + random.nextInt(60000), random);
+            File file = folder.newFile();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+            }
+            TapeStorage storage = new HeapTapeStorage(file);
+            TapHeader header = TapHeader.parse(storage);
+            TapeIndex index = new TapeIndex(storage, header);
+            Scan scan = new Scan(data, version);
+
+            assertEquals(scan.cyclesBefore(data.length), index.getTotalCycles());
+            assertEquals(scan.values(), index.getValueCount());
+            for (int i = 0; i < LOOKUPS; i++) {
+                int pos = random.nextInt(data.length + 8);
+                assertEquals("pos2cycles " + pos, scan.cyclesBefore(pos), index.pos2cycles(pos));
+                long cycles = (long) (random.nextDouble() * 1.1 * scan.cyclesBefore(data.length));
+                if (i % 10 == 0) cycles = scan.cyclesBefore(pos);
+                assertEquals("cycles2pos " + cycles, scan.cycles2pos(cycles), index.cycles2pos(cycles));
+                int value = random.nextInt(scan.values() + 8);
+                assertEquals("value2pos " + value, scan.value2pos(value), index.value2pos(value));
+            }
+            storage.close();
+        }
+    }
+
+    // bytes of every value, zeros now and then, a truncated extended value at the end sometimes
+    private static byte[] randomImage(int version, int length, Random random) {
+        byte[] data = new byte[TapHeader.SIZE + length];
+        System.arraycopy(TapHeader.create(length), 0, data, 0, TapHeader.SIZE);
+        data[12] = (byte) version;
+        for (int i = TapHeader.SIZE; i < data.length; i++) {
+            data[i] = (byte) (random.nextInt(50) == 0 ? 0 : 1 + random.nextInt(255));
+        }
+        return data;
+    }
+
+    /**
+     * The old walk from the start of data, bytes read unsigned.
+     */
+    private static class Scan {
+        private final byte[] data;
+        private final int version;
+
+        Scan(byte[] data, int version) {
+            this.data = data;
+            this.version = version;
+        }
+
+        private int at(int pos) {
+            return pos < data.length ? data[pos] & 0xff : 0;
+        }
+
+        private int length(int pos) {
+            return at(pos) == 0 && version > 0 ? 4 : 1;
+        }
+
+        private long cycles(int pos) {
+            int value = at(pos);
+            if (value != 0) return value * 8L;
+            if (version == 0) return TapHeader.V0_PAUSE_CYCLES;
+            return at(pos + 1) | at(pos + 2) << 8 | (long) at(pos + 3) << 16;
+        }
+
+        long cyclesBefore(int pos) {
+            long total = 0;
+            for (int xpos = TapHeader.SIZE; xpos < Math.min(pos, data.length); xpos += length(xpos)) total += cycles(xpos);
+            return total;
+        }
+
+        int cycles2pos(long target) {
+            int xpos = TapHeader.SIZE;
+            long total = 0;
+            while (xpos < data.length && total < target) {
+                total += cycles(xpos);
+                xpos += length(xpos);
+            }
+            return Math.min(xpos, data.length);
+        }
+
+        int value2pos(int value) {
+            int xpos = TapHeader.SIZE;
+            for (int n = 0; n < value && xpos < data.length; n++) xpos += length(xpos);
+            return Math.min(xpos, data.length);
+        }
+
+        int values() {
+            int n = 0;
+            for (int xpos = TapHeader.SIZE; xpos < data.length; xpos += length(xpos)) n++;
+            return n;
+        }
+    }
+}
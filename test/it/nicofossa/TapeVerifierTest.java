@@ -0,0 +1,229 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link TapeVerifier} on a synthesized program tape against copies with one
+ * kind of damage each, checking what it reports and where.
+ */
+public class TapeVerifierTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] image;
+    private Tape reference;
+    private List<CbmBlock> blocks;
+    private final List<Tape> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] program = new byte[2 + 2000];
+        new Random(25).nextBytes(program);
+        program[0] = 0x01;
+        program[1] = 0x08;
+        File prg = folder.newFile("test.prg");
+        try (OutputStream out = new FileOutputStream(prg)) {
+            out.write(program);
+        }
+        TapeStorage storage = new PrgTapeStorage(prg);
+        image = new byte[storage.size()];
+        storage.get(0, image, 0, image.length);
+        storage.close();
+        reference = open(image);
+        blocks = reference.getBlocks().getBlocks();
+        assertEquals(4, blocks.size());
+    }
+
+    @After
+    public void tearDown() {
+        for (Tape tape : opened) tape.close();
+    }
+
+    @Test
+    public void sameTape() throws IOException {
+        TapeVerifier.Report report = verify(image);
+        assertTrue(report.toString(), report.isEquivalent());
+        assertEquals(0, report.getStats().getMax());
+        assertEquals(0, report.getLeaderDifference());
+    }
+
+    @Test
+    public void jitterWithinTolerance() throws IOException {
+        byte[] copy = image.clone();
+        Random random = new Random(1);
+        for (int i = TapHeader.SIZE; i < copy.length; i += copy[i] == 0 ? 4 : 1) {
+            if (copy[i] != 0) copy[i] = (byte) ((copy[i] & 0xff) - 2 + random.nextInt(5));
+        }
+        TapeVerifier.Report report = verify(copy);
+        assertTrue(report.toString(), report.isEquivalent());
+        assertTrue(report.getStats().getMax() <= 16);
+        assertTrue(report.getStats().getCount() > 0);
+    }
+
+    @Test
+    public void droppedPulse() throws IOException {
+        int at = middle(2);
+        TapeVerifier.Report report = verify(splice(image, at, 1, new byte[0]));
+        assertDiverged(report, TapeVerifier.Kind.MISSING, at, 2);
+        assertEquals(1, report.getMissingPulses());
+        assertEquals(0, report.getExtraPulses());
+    }
+
+    @Test
+    public void extraPulse() throws IOException {
+        int at = middle(2);
+        TapeVerifier.Report report = verify(splice(image, at, 0, new byte[]{(byte) 0x42}));
+        assertDiverged(report, TapeVerifier.Kind.EXTRA, at, 2);
+        assertEquals(1, report.getExtraPulses());
+        assertEquals(0, report.getMissingPulses());
+    }
+
+    @Test
+    public void splitPulse() throws IOException {
+        int at = pulseAtLeast(middle(2), 0x42);
+        int value = image[at] & 0xff;
+        TapeVerifier.Report report = verify(splice(image, at, 1, new byte[]{(byte) (value / 2), (byte) (value - value / 2)}));
+        assertDiverged(report, TapeVerifier.Kind.SPLIT, at, 2);
+        assertEquals(0, report.getExtraPulses());
+    }
+
+    @Test
+    public void mergedPulses() throws IOException {
+        int at = middle(2);
+        int value = (image[at] & 0xff) + (image[at + 1] & 0xff);
+        TapeVerifier.Report report = verify(splice(image, at, 2, new byte[]{(byte) value}));
+        assertDiverged(report, TapeVerifier.Kind.MERGED, at, 2);
+        assertEquals(0, report.getMissingPulses());
+    }
+
+    @Test
+    public void leadersOfOtherLength() throws IOException {
+        // the first leader longer, the one of the data block shorter
+        byte[] longer = new byte[700];
+        Arrays.fill(longer, (byte) 0x30);
+        byte[] copy = splice(image, blocks.get(2).getLeaderOffset() + 100, 900, new byte[0]);
+        copy = splice(copy, blocks.get(0).getLeaderOffset() + 100, 0, longer);
+        TapeVerifier.Report report = verify(copy);
+        assertTrue(report.toString(), report.isEquivalent());
+        assertEquals(0, report.getDivergenceCount());
+        assertTrue(report.getLeaderDifference() >= 900);
+    }
+
+    @Test
+    public void missingBlock() throws IOException {
+        // the repeat of the header block, with the gap before it
+        CbmBlock lost = blocks.get(1);
+        int from = blocks.get(0).getEndOffset();
+        TapeVerifier.Report report = verify(splice(image, from, lost.getEndOffset() - from, new byte[0]));
+        assertFalse(report.isEquivalent());
+        assertMismatched(report, lost);
+        assertTrue(report.getMissingPulses() > 0);
+        assertEquals(0, report.getExtraPulses());
+    }
+
+    @Test
+    public void differentBlock() throws IOException {
+        // a flipped bit leaves the blocks unpaired, the data and its repeat both differ
+        int at = pulseAtLeast(middle(2), 0x42);
+        byte[] copy = image.clone();
+        copy[at] = (byte) 0x30;
+        copy[at + 1] = (byte) 0x42;
+        TapeVerifier.Report report = verify(copy);
+        assertFalse(report.isEquivalent());
+        assertMismatched(report, blocks.get(2));
+    }
+
+    private void assertDiverged(TapeVerifier.Report report, TapeVerifier.Kind kind, int offset, int block) {
+        assertFalse(report.isEquivalent());
+        TapeVerifier.Divergence first = report.getFirstDivergence();
+        assertEquals(report.toString(), kind, first.kind);
+        assertEquals(offset, first.getReferenceOffset());
+        assertEquals(1, report.getDivergenceCount());
+        assertMismatched(report, blocks.get(block));
+    }
+
+    // the verifier decodes blocks of its own, so they are told apart by where they are
+    private static void assertMismatched(TapeVerifier.Report report, CbmBlock block) {
+        List<CbmBlock> mismatched = report.getMismatchedBlocks();
+        assertEquals(mismatched.toString(), 1, mismatched.size());
+        assertEquals(block.getLeaderOffset(), mismatched.get(0).getLeaderOffset());
+        assertEquals(block.getEndOffset(), mismatched.get(0).getEndOffset());
+    }
+
+    // offset of a byte in the middle of block n, at the start of a byte marker
+    private int middle(int n) {
+        CbmBlock block = blocks.get(n);
+        int offset = (block.getStartOffset() + block.getEndOffset()) / 2;
+        return offset - (offset - block.getStartOffset()) % 20 + 2;
+    }
+
+    // first pulse at or after offset of at least value, as TAP units
+    private int pulseAtLeast(int offset, int value) {
+        while ((image[offset] & 0xff) < value) offset++;
+        return offset;
+    }
+
+    private TapeVerifier.Report verify(byte[] candidate) {
+        try {
+            return new TapeVerifier(reference, open(candidate)).verify();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] splice(byte[] data, int at, int remove, byte[] insert) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(data, 0, at);
+        out.write(insert, 0, insert.length);
+        out.write(data, at + remove, data.length - at - remove);
+        byte[] result = out.toByteArray();
+        // the data length in the header
+        int length = result.length - TapHeader.SIZE;
+        for (int i = 0; i < 4; i++) result[16 + i] = (byte) (length >>> (8 * i));
+        return result;
+    }
+
+    private Tape open(byte[] data) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        Tape tape = new Tape(file);
+        opened.add(tape);
+        return tape;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+  Based on original work by Mike Dawson (https://gp2x.org/uno2tap/)
+  */
+package it.nicofossa;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip of a program through {@link WavExport} and back through
+ * {@link WavTapeStorage}: the recording must keep the length of the tape and of
+ * each pulse, within what the sample grid allows.
+ */
+public class WavTapeStorageTest {
+    // an edge is placed within a sample, 22.34 cycles at 44.1 kHz, then rounded to a TAP unit
+    private static final int PULSE_TOLERANCE = 28;
+    // the edges do not drift apart, however long the tape
+    private static final int DRIFT_TOLERANCE = 28;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void programRoundTrip() throws IOException {
+        byte[] program = new byte[2 + 3000];
+        new Random(64).nextBytes(program);
+        program[0] = 0x01;
+        program[1] = 0x08;
+        File prg = folder.newFile("test.prg");
+        try (OutputStream out = new FileOutputStream(prg)) {
+            out.write(program);
+        }
+        File wav = new File(folder.getRoot(), "test.wav");
+        Tape source = new Tape(prg);
+        WavExport.export(source, wav);
+        Tape decoded = new Tape(wav);
+
+        PulseArray expected = source.getPulses();
+        PulseArray actual = decoded.getPulses();
+        // the first edge only starts the first pulse, the last pause has no edge to end it
+        assertEquals(expected.size() - 2, actual.size());
+        long drift = 0;
+        long maxDrift = 0;
+        for (int i = 0; i < actual.size(); i++) {
+            int want = expected.get(i + 1);
+            int error = actual.get(i) - want;
+            if (want < 256 * 8) assertTrue("pulse " + i + " off by " + error, Math.abs(error) <= PULSE_TOLERANCE);
+            drift += error;
+            maxDrift = Math.max(maxDrift, Math.abs(drift));
+        }
+        assertTrue("drift " + maxDrift + " cycles", maxDrift <= DRIFT_TOLERANCE);
+        assertEquals(source.getTotalTime(), decoded.getTotalTime() + (expected.get(0) + lastPause(expected)) / TapeIndex.CLOCK,
+                DRIFT_TOLERANCE / TapeIndex.CLOCK);
+
+        source.close();
+        decoded.close();
+    }
+
+    private static int lastPause(PulseArray pulses) {
+        return pulses.get(pulses.size() - 1);
+    }
+}